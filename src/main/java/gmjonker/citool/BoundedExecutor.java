@@ -0,0 +1,87 @@
+package gmjonker.citool;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import gmjonker.util.LambdaLogger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed pool of worker threads that blocks the submitting thread while the maximum number of tasks is in flight.
+ *
+ * <p>This keeps producers (e.g. a loop over documents) from running ahead of the workers, so memory use stays bounded
+ * no matter how many tasks are submitted in total. With one thread, tasks are executed in submission order.
+ */
+class BoundedExecutor implements AutoCloseable
+{
+    private final ExecutorService executorService;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    private static final LambdaLogger log = new LambdaLogger(BoundedExecutor.class);
+
+    BoundedExecutor(int numThreads, String threadName)
+    {
+        this(numThreads, numThreads * 2, threadName);
+    }
+
+    /**
+     * @param numThreads Number of worker threads
+     * @param maxInFlight Maximum number of tasks that are running or waiting to run
+     * @param threadName Name of the worker threads, used in logging
+     */
+    BoundedExecutor(int numThreads, int maxInFlight, String threadName)
+    {
+        if (numThreads < 1 || maxInFlight < numThreads)
+            throw new IllegalArgumentException("Need at least one thread and at least one task in flight per thread");
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executorService = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setNameFormat(threadName + "-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Submits a task, blocking while the maximum number of tasks is in flight. Exceptions thrown by the task are logged
+     * and otherwise ignored, so tasks should do their own error handling.
+     */
+    void submit(Runnable task)
+    {
+        inFlight.acquireUninterruptibly();
+        try {
+            executorService.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("Uncaught exception in task", e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Blocks until all tasks submitted so far have finished.
+     */
+    void awaitCompletion()
+    {
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+    }
+
+    @Override
+    public void close()
+    {
+        executorService.shutdown();
+        try {
+            executorService.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package gmjonker.citool;
+
+import gmjonker.util.LambdaLogger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the number of items sent to Watson in one request, based on how requests of the current size fare.
+ *
+ * <p>The size grows by a quarter after each fast request of at least the current size, shrinks by a quarter after a
+ * slow request (more than twice the target latency), and is halved after a failed request. This finds the largest
+ * batch size Watson handles comfortably, which saves requests, without running into its limits for long.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiBatchSizer
+{
+    private final int minSize;
+    private final int maxSize;
+    private long targetLatencyNanos = TimeUnit.SECONDS.toNanos(2);
+    private int size;
+
+    private static final LambdaLogger log = new LambdaLogger(CiBatchSizer.class);
+
+    public CiBatchSizer(int initialSize, int minSize, int maxSize)
+    {
+        if (minSize < 1 || initialSize < minSize || maxSize < initialSize)
+            throw new IllegalArgumentException("Need 1 <= minSize <= initialSize <= maxSize");
+        this.size = initialSize;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return A sizer that always returns the given size.
+     */
+    public static CiBatchSizer fixed(int size)
+    {
+        return new CiBatchSizer(size, size, size);
+    }
+
+    /**
+     * Sets the latency below which requests count as fast. Default is 2 seconds.
+     */
+    public CiBatchSizer setTargetLatency(long targetLatencyMillis)
+    {
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        return this;
+    }
+
+    public synchronized int getSize()
+    {
+        return size;
+    }
+
+    public synchronized void onSuccess(int batchSize, long latencyNanos)
+    {
+        if (latencyNanos > 2 * targetLatencyNanos)
+            setSize(size - Math.max(1, size / 4), "slow request");
+        else if (latencyNanos < targetLatencyNanos && batchSize >= size)
+            setSize(size + Math.max(1, size / 4), "fast request");
+    }
+
+    public synchronized void onFailure(int batchSize)
+    {
+        setSize(Math.min(size, batchSize) / 2, "failed request");
+    }
+
+    private void setSize(int newSize, String reason)
+    {
+        newSize = Math.max(minSize, Math.min(maxSize, newSize));
+        if (newSize != size)
+            log.trace("Batch size {} -> {} after {}", size, newSize, reason);
+        size = newSize;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "CiBatchSizer{size=" + size + ", min=" + minSize + ", max=" + maxSize + "}";
+    }
+}
@@ -0,0 +1,129 @@
+package gmjonker.citool;
+
+import gmjonker.citool.domain.RelationMatrix;
+import gmjonker.util.LambdaLogger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Writes relations in a compact binary format, with one float per document and concept.
+ *
+ * <p>The format, in big-endian order:
+ * <pre>
+ * int    magic, "CIRM"
+ * int    version, 1
+ * int    number of columns (concepts)
+ * int    number of rows (documents), -1 until the sink is closed
+ * long   offset of the row names, -1 until the sink is closed
+ * column names, each as an int byte length followed by UTF-8 bytes
+ * rows, each as one float per column, NaN for concepts without a score
+ * row names, each as an int byte length followed by UTF-8 bytes
+ * </pre>
+ * Rows have a fixed size, so row i can be found without reading the rows before it. Row names are only written when
+ * the sink is closed, after which the header is completed. Each document can be written once. Read the file with
+ * {@link CiRelationFileReader}.
+ */
+public class CiBinaryRelationSink implements CiRelationSink
+{
+    static final int MAGIC = 0x4349524d; // "CIRM"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+
+    private final File file;
+    private final Map<String, Integer> columnIndexes = new HashMap<>();
+    private final int numColumns;
+    private final List<String> rowNames = new ArrayList<>();
+    private final Set<String> rowNameSet = new HashSet<>();
+    private final DataOutputStream out;
+    private boolean closed = false;
+
+    private static final LambdaLogger log = new LambdaLogger(CiBinaryRelationSink.class);
+
+    /**
+     * @param conceptNames Names of the columns. Scores of other concepts are left out.
+     */
+    public CiBinaryRelationSink(File file, List<String> conceptNames) throws IOException
+    {
+        this.file = file;
+        this.numColumns = conceptNames.size();
+        for (String conceptName : conceptNames)
+            columnIndexes.put(conceptName, columnIndexes.size());
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numColumns);
+        out.writeInt(-1);
+        out.writeLong(-1);
+        for (String conceptName : conceptNames)
+            writeString(out, conceptName);
+    }
+
+    /**
+     * Writes the relations of a matrix, e.g. one that was loaded from a {@link CiRelationStore}.
+     */
+    public static void write(File file, RelationMatrix matrix) throws IOException
+    {
+        try (CiBinaryRelationSink sink = new CiBinaryRelationSink(file, matrix.getColumnKeys())) {
+            for (int rowIndex = 0; rowIndex < matrix.getNumRows(); rowIndex++) {
+                float[] row = matrix.getRow(rowIndex);
+                Map<String, Double> scores = new HashMap<>();
+                for (int columnIndex = 0; columnIndex < row.length; columnIndex++)
+                    if ( ! Float.isNaN(row[columnIndex]))
+                        scores.put(matrix.getColumnKey(columnIndex), (double) row[columnIndex]);
+                sink.accept(matrix.getRowKey(rowIndex), scores);
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException If the document was already written
+     */
+    @Override
+    public void accept(String documentName, Map<String, Double> scores) throws IOException
+    {
+        if ( ! rowNameSet.add(documentName))
+            throw new IllegalArgumentException("Document " + documentName + " was already written to " + file);
+        float[] row = new float[numColumns];
+        Arrays.fill(row, Float.NaN);
+        for (Map.Entry<String, Double> score : scores.entrySet()) {
+            Integer columnIndex = columnIndexes.get(score.getKey());
+            if (columnIndex != null)
+                row[columnIndex] = score.getValue().floatValue();
+        }
+        for (float value : row)
+            out.writeFloat(value);
+        rowNames.add(documentName);
+    }
+
+    /**
+     * Writes the row names and completes the header.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        // DataOutputStream.size() stops counting at 2 GB, so ask the file system
+        out.flush();
+        long rowNamesOffset = file.length();
+        for (String rowName : rowNames)
+            writeString(out, rowName);
+        out.close();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(12);
+            randomAccessFile.writeInt(rowNames.size());
+            randomAccessFile.writeLong(rowNamesOffset);
+        }
+        log.debug("Wrote relations of {} documents and {} concepts to {}", rowNames.size(), numColumns, file);
+    }
+
+    static void writeString(DataOutput out, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,251 @@
+package gmjonker.citool;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Graph;
+import gmjonker.util.LambdaLogger;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Remembers which concept names exist in which graph, so that validating the same concepts again doesn't need a
+ * request per concept.
+ *
+ * <p>Found and not found concepts are kept in separate caches, each bounded in size, because they age differently:
+ * concepts rarely disappear from a graph, but a concept that is missing may be added with the next version of the
+ * graph. Only definite answers should be put in the cache, not the results of failed requests. The cache is safe for
+ * use by multiple threads, and can be saved to a snapshot file that is loaded on the next run. With a snapshot file,
+ * {@link CiGraphQuerier} saves the cache after each batch of checks, and changes that were not saved yet are saved at
+ * shutdown.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiConceptExistenceCache
+{
+    public static final long DEFAULT_FOUND_TTL_MILLIS = TimeUnit.DAYS.toMillis(30);
+    public static final long DEFAULT_NOT_FOUND_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    public static final int DEFAULT_MAX_SIZE = 100000;
+    private static final int SNAPSHOT_MAGIC = 0x43494531; // "CIE1"
+    private static final char KEY_SEPARATOR = '\t';
+    /** Caches with a snapshot file, saved at shutdown if they changed. */
+    private static final Set<CiConceptExistenceCache> cachesToSave = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(
+                () -> cachesToSave.forEach(CiConceptExistenceCache::saveSnapshotIfDirty), "ci-existence-cache-shutdown"));
+    }
+
+    private final long foundTtlMillis;
+    private final long notFoundTtlMillis;
+    /** Time the answer was determined, by key. */
+    private final Cache<String, Long> found;
+    private final Cache<String, Long> notFound;
+    @Nullable private File snapshotFile = null;
+    /** Whether answers changed since the snapshot was last saved. */
+    private volatile boolean dirty = false;
+
+    private static final LambdaLogger log = new LambdaLogger(CiConceptExistenceCache.class);
+
+    public CiConceptExistenceCache()
+    {
+        this(DEFAULT_FOUND_TTL_MILLIS, DEFAULT_NOT_FOUND_TTL_MILLIS, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param foundTtlMillis How long a concept that was found is remembered
+     * @param notFoundTtlMillis How long a concept that was not found is remembered
+     * @param maxSize Maximum number of found concepts, and maximum number of not found concepts
+     */
+    public CiConceptExistenceCache(long foundTtlMillis, long notFoundTtlMillis, int maxSize)
+    {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be at least 1, got " + maxSize);
+        this.foundTtlMillis = foundTtlMillis;
+        this.notFoundTtlMillis = notFoundTtlMillis;
+        // The caches expire entries by the time they were put, the age of loaded entries is checked on each get
+        this.found = CacheBuilder.newBuilder().maximumSize(maxSize)
+                .expireAfterWrite(foundTtlMillis, TimeUnit.MILLISECONDS).build();
+        this.notFound = CacheBuilder.newBuilder().maximumSize(maxSize)
+                .expireAfterWrite(notFoundTtlMillis, TimeUnit.MILLISECONDS).build();
+    }
+
+    /**
+     * Sets the file the cache is saved to by {@link #saveSnapshot()}, and loads it if it exists. Answers keep the age
+     * they had when they were saved. Changes that were not saved yet are saved at shutdown.
+     */
+    public CiConceptExistenceCache setSnapshotFile(File snapshotFile) throws IOException
+    {
+        cachesToSave.add(this);
+        this.snapshotFile = snapshotFile;
+        if (snapshotFile.exists())
+            loadSnapshot();
+        return this;
+    }
+
+    /**
+     * @return Whether the concept exists in the graph, or null if that is not known or has expired.
+     */
+    @Nullable
+    public Boolean get(Graph graph, String conceptName)
+    {
+        String key = keyOf(graph, conceptName);
+        long now = System.currentTimeMillis();
+        if (isFresh(found, key, foundTtlMillis, now))
+            return true;
+        if (isFresh(notFound, key, notFoundTtlMillis, now))
+            return false;
+        return null;
+    }
+
+    public void put(Graph graph, String conceptName, boolean exists)
+    {
+        put(keyOf(graph, conceptName), exists, System.currentTimeMillis());
+        dirty = true;
+    }
+
+    public void invalidateAll()
+    {
+        found.invalidateAll();
+        notFound.invalidateAll();
+        dirty = true;
+    }
+
+    /**
+     * @return Number of remembered answers, possibly including expired ones.
+     */
+    public long size()
+    {
+        return found.size() + notFound.size();
+    }
+
+    /**
+     * Writes the answers that have not expired to the snapshot file. Writes to a temporary file first, so that a crash
+     * during saving doesn't leave a corrupt snapshot behind.
+     */
+    public synchronized void saveSnapshot() throws IOException
+    {
+        if (snapshotFile == null)
+            throw new IllegalStateException("No snapshot file set");
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        // Answers put while saving mark the cache dirty again
+        dirty = false;
+        long now = System.currentTimeMillis();
+        Map<String, Long> foundToSave = freshEntries(found, foundTtlMillis, now);
+        Map<String, Long> notFoundToSave = freshEntries(notFound, notFoundTtlMillis, now);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                new FileOutputStream(tempFile))))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(foundToSave.size() + notFoundToSave.size());
+            for (Map.Entry<String, Long> entry : foundToSave.entrySet())
+                writeEntry(out, entry.getKey(), true, entry.getValue());
+            for (Map.Entry<String, Long> entry : notFoundToSave.entrySet())
+                writeEntry(out, entry.getKey(), false, entry.getValue());
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        log.debug("Saved {} found and {} not found concepts to {}", foundToSave.size(), notFoundToSave.size(),
+                snapshotFile);
+    }
+
+    /**
+     * Saves the snapshot if a snapshot file was set and answers changed since it was last saved. Failures are logged,
+     * not thrown.
+     */
+    public synchronized void saveSnapshotIfDirty()
+    {
+        if (snapshotFile == null || ! dirty)
+            return;
+        try {
+            saveSnapshot();
+        } catch (IOException e) {
+            log.warn("Could not save concept existence snapshot to {}: {}", snapshotFile, e.toString());
+        }
+    }
+
+    private synchronized void loadSnapshot() throws IOException
+    {
+        assert snapshotFile != null;
+        int numLoaded = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                new FileInputStream(snapshotFile))))) {
+            if (in.readInt() != SNAPSHOT_MAGIC)
+                throw new IOException("Not a concept existence snapshot: " + snapshotFile);
+            int numEntries = in.readInt();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < numEntries; i++) {
+                String key = readString(in);
+                boolean exists = in.readBoolean();
+                long determinedMillis = in.readLong();
+                if (now - determinedMillis < (exists ? foundTtlMillis : notFoundTtlMillis)) {
+                    put(key, exists, determinedMillis);
+                    numLoaded++;
+                }
+            }
+        }
+        log.info("Loaded {} concepts from {}", numLoaded, snapshotFile);
+    }
+
+    private void put(String key, boolean exists, long determinedMillis)
+    {
+        (exists ? found : notFound).put(key, determinedMillis);
+        (exists ? notFound : found).invalidate(key);
+    }
+
+    private static boolean isFresh(Cache<String, Long> cache, String key, long ttlMillis, long now)
+    {
+        Long determinedMillis = cache.getIfPresent(key);
+        if (determinedMillis == null)
+            return false;
+        if (now - determinedMillis < ttlMillis)
+            return true;
+        cache.invalidate(key);
+        return false;
+    }
+
+    private static Map<String, Long> freshEntries(Cache<String, Long> cache, long ttlMillis, long now)
+    {
+        Map<String, Long> entries = new HashMap<>();
+        for (Map.Entry<String, Long> entry : cache.asMap().entrySet())
+            if (now - entry.getValue() < ttlMillis)
+                entries.put(entry.getKey(), entry.getValue());
+        return entries;
+    }
+
+    private static String keyOf(Graph graph, String conceptName)
+    {
+        String graphId = graph.getId() != null ? graph.getId() : graph.getName();
+        return graphId + KEY_SEPARATOR + conceptName;
+    }
+
+    private static void writeEntry(DataOutputStream out, String key, boolean exists, long determinedMillis)
+            throws IOException
+    {
+        writeString(out, key);
+        out.writeBoolean(exists);
+        out.writeLong(determinedMillis);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,219 @@
+package gmjonker.citool;
+
+import com.ibm.watson.developer_cloud.service.InternalServerErrorException;
+import com.ibm.watson.developer_cloud.service.ServiceUnavailableException;
+import com.ibm.watson.developer_cloud.service.TooManyRequestsException;
+import gmjonker.util.LambdaLogger;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of concurrent calls to Watson, adapting the limit to what the service can sustain.
+ *
+ * <p>Uses additive increase, multiplicative decrease (AIMD): every successful call raises the limit by 1/limit, so
+ * the limit grows by about one per round of calls, as long as latency stays healthy. When Watson signals overload
+ * (429, 500, 503) or a call times out, the limit is multiplied by the backoff factor. Decreases are spaced at least
+ * one average latency apart, so that a burst of failures from the same round of calls counts as one overload.
+ *
+ * <p>Latency is considered healthy while the short-term average latency is below {@code latencyTolerance} times the
+ * long-term average. One instance is meant to be shared by all classes that talk to the same Watson service, see
+ * {@link #getDefault()}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiConcurrencyLimiter
+{
+    private static CiConcurrencyLimiter defaultInstance = null;
+
+    private static final LambdaLogger log = new LambdaLogger(CiConcurrencyLimiter.class);
+
+    /**
+     * @return The limiter that is used by all Watson calls in this package, unless another one is set.
+     */
+    public static synchronized CiConcurrencyLimiter getDefault()
+    {
+        if (defaultInstance == null)
+            defaultInstance = new CiConcurrencyLimiter(4, 1, 64);
+        return defaultInstance;
+    }
+
+    /**
+     * @return Whether the exception means that Watson is overloaded, or that the call timed out.
+     */
+    public static boolean isOverload(Throwable throwable)
+    {
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            if (t instanceof TooManyRequestsException || t instanceof InternalServerErrorException
+                    || t instanceof ServiceUnavailableException || t instanceof InterruptedIOException)
+                return true;
+        }
+        return false;
+    }
+
+    ///
+
+    private static final double SHORT_TERM_WEIGHT = 0.1;
+    private static final double LONG_TERM_WEIGHT = 0.01;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double backoffFactor = 0.5;
+    private double latencyTolerance = 2.0;
+
+    private double limit;
+    private int inFlight = 0;
+    private double shortTermLatencyNanos = 0;
+    private double longTermLatencyNanos = 0;
+    private long lastDecreaseNanos = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+    private long numSuccesses = 0;
+    private long numOverloads = 0;
+
+    public CiConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit)
+    {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit)
+            throw new IllegalArgumentException("Need 1 <= minLimit <= initialLimit <= maxLimit");
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @param backoffFactor Factor the limit is multiplied with on overload, between 0 and 1. Default is 0.5.
+     */
+    public synchronized CiConcurrencyLimiter setBackoffFactor(double backoffFactor)
+    {
+        if (backoffFactor <= 0 || backoffFactor >= 1)
+            throw new IllegalArgumentException("Backoff factor must be between 0 and 1, got " + backoffFactor);
+        this.backoffFactor = backoffFactor;
+        return this;
+    }
+
+    /**
+     * @param latencyTolerance How many times slower than usual calls may get before the limit stops growing.
+     *     Default is 2.
+     */
+    public synchronized CiConcurrencyLimiter setLatencyTolerance(double latencyTolerance)
+    {
+        this.latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    /**
+     * Performs a call to Watson, waiting first until the number of calls in flight is below the limit. Exceptions are
+     * passed on to the caller, after they have been taken into account.
+     */
+    public <T> T call(Supplier<T> request)
+    {
+        acquire();
+        long start = System.nanoTime();
+        boolean overloaded = false;
+        try {
+            return request.get();
+        } catch (RuntimeException e) {
+            overloaded = isOverload(e);
+            throw e;
+        } finally {
+            release(System.nanoTime() - start, overloaded);
+        }
+    }
+
+    public void run(Runnable request)
+    {
+        call(() -> {
+            request.run();
+            return null;
+        });
+    }
+
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+
+    /**
+     * @return Average latency over roughly the last 10 calls.
+     */
+    public synchronized long getAverageLatencyMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis((long) shortTermLatencyNanos);
+    }
+
+    /**
+     * @return Average latency over roughly the last 100 calls.
+     */
+    public synchronized long getLongTermAverageLatencyMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis((long) longTermLatencyNanos);
+    }
+
+    public synchronized long getNumSuccesses()
+    {
+        return numSuccesses;
+    }
+
+    public synchronized long getNumOverloads()
+    {
+        return numOverloads;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "CiConcurrencyLimiter{limit=" + getLimit() + ", inFlight=" + inFlight
+                + ", latency=" + getAverageLatencyMillis() + "ms, longTermLatency=" + getLongTermAverageLatencyMillis()
+                + "ms, successes=" + numSuccesses + ", overloads=" + numOverloads + "}";
+    }
+
+    private synchronized void acquire()
+    {
+        boolean interrupted = false;
+        while (inFlight >= (int) limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        inFlight++;
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private synchronized void release(long latencyNanos, boolean overloaded)
+    {
+        inFlight--;
+        if (overloaded) {
+            numOverloads++;
+            long now = System.nanoTime();
+            if (now - lastDecreaseNanos > shortTermLatencyNanos) {
+                limit = Math.max(minLimit, limit * backoffFactor);
+                lastDecreaseNanos = now;
+                log.debug("Watson overloaded, decreased concurrency limit to {}", (int) limit);
+            }
+        } else {
+            numSuccesses++;
+            if (longTermLatencyNanos == 0) {
+                shortTermLatencyNanos = latencyNanos;
+                longTermLatencyNanos = latencyNanos;
+            } else {
+                shortTermLatencyNanos += SHORT_TERM_WEIGHT * (latencyNanos - shortTermLatencyNanos);
+                longTermLatencyNanos += LONG_TERM_WEIGHT * (latencyNanos - longTermLatencyNanos);
+            }
+            // Only grow when the limit is actually being used, otherwise it would grow without bound when idle
+            boolean healthy = shortTermLatencyNanos <= latencyTolerance * longTermLatencyNanos;
+            if (healthy && inFlight + 1 >= (int) limit && limit < maxLimit) {
+                int before = (int) limit;
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+                if ((int) limit > before)
+                    log.trace("Increased concurrency limit to {}", (int) limit);
+            }
+        }
+        notifyAll();
+    }
+}
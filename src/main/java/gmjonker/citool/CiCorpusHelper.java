@@ -1,23 +1,37 @@
 package gmjonker.citool;
 
+import com.google.common.collect.AbstractIterator;
 import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights;
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpora;
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpus;
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.Document;
 import com.ibm.watson.developer_cloud.service.BadRequestException;
+import com.ibm.watson.developer_cloud.service.NotFoundException;
 import gmjonker.util.LambdaLogger;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static gmjonker.util.CollectionsUtil.map;
-import static gmjonker.util.StringNormalization.containsNormalized;
 import static java.util.Collections.emptySet;
 
 public class CiCorpusHelper
 {
     public static final int NO_LIMIT = -1;
 
+    /** Number of document ids fetched per call when listing a corpus. */
+    public static final int PAGE_SIZE = 1000;
+    /**
+     * Above this number of requested documents, the corpus is listed instead of looking up each document. A lookup is a
+     * request per document, while listing is a request per page, so this is kept to a fraction of a page.
+     */
+    public static final int MAX_TARGETED_LOOKUPS = PAGE_SIZE / 10;
+
+    private static final int EXISTENCE_CHECK_CONCURRENCY = 8;
+
     private static final LambdaLogger log = new LambdaLogger(CiCorpusHelper.class);
 
     public static void showCorpora(ConceptInsights conceptInsightsService, String accountId)
@@ -67,18 +81,68 @@ public class CiCorpusHelper
         }
     }
 
+    /**
+     * Lazily pages through the ids of all documents in the corpus. At most one page of ids is held in memory, so this
+     * also works for corpora with millions of documents.
+     *
+     * <p>Paging is offset based, so documents that are added or deleted while iterating may be missed or returned twice.
+     */
+    public static Iterator<String> iterateDocumentIds(ConceptInsights conceptInsightsService, Corpus corpus)
+    {
+        return iterateDocumentIds(conceptInsightsService, corpus, PAGE_SIZE);
+    }
+
+    /**
+     * @param pageSize Number of ids requested per call to CI.
+     * @see #iterateDocumentIds(ConceptInsights, Corpus)
+     */
+    public static Iterator<String> iterateDocumentIds(ConceptInsights conceptInsightsService, Corpus corpus, int pageSize)
+    {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("Page size must be at least 1, got " + pageSize);
+        return new AbstractIterator<String>()
+        {
+            private int cursor = 0;
+            private Iterator<String> page = Collections.emptyIterator();
+            private boolean lastPage = false;
+
+            @Override
+            protected String computeNext()
+            {
+                while ( ! page.hasNext()) {
+                    if (lastPage)
+                        return endOfData();
+                    List<String> documentIds = getPageOfDocumentIds(conceptInsightsService, corpus, cursor, pageSize);
+                    // A short page is the last one. This saves a request for an empty page.
+                    lastPage = documentIds.size() < pageSize;
+                    cursor += documentIds.size();
+                    page = documentIds.iterator();
+                }
+                return page.next();
+            }
+        };
+    }
+
+    /**
+     * @see #iterateDocumentIds(ConceptInsights, Corpus)
+     */
+    public static Stream<String> streamDocumentIds(ConceptInsights conceptInsightsService, Corpus corpus)
+    {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                iterateDocumentIds(conceptInsightsService, corpus), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
     @Deprecated
     public static Set<String> getAllDocumentIds(ConceptInsights conceptInsightsService, Corpus corpus)
     {
+        CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+        if (mirror != null)
+            return mirror.getDocumentIds();
         log.debug("Getting all documents from corpus '{}'...", CiUtil.getNameFromId(corpus.getId()));
-        Map<String, Object> parameters = new HashMap<>();
-        parameters.put(ConceptInsights.LIMIT, 0); // 0 will get the maximum of 100.000 documents
-        List<String> documentIds = conceptInsightsService.listDocuments(corpus, parameters).getDocuments();
+        Set<String> documentIds = streamDocumentIds(conceptInsightsService, corpus).collect(Collectors.toSet());
+        log.debug("Corpus '{}' has {} documents", CiUtil.getNameFromId(corpus.getId()), documentIds.size());
         log.trace("documentIds = {}", () -> documentIds);
-        if (documentIds.size() == 100000)
-            log.warn("Received 100000 documents from CI. This means that there are probablye more than 100000 documents," +
-                    "so we should fetch documents incrementally.");
-        return new HashSet<>(documentIds);
+        return documentIds;
     }
 
     /**
@@ -90,6 +154,10 @@ public class CiCorpusHelper
     }
 
     /**
+     * When onlyIds is given, the requested documents are looked up directly instead of listing the whole corpus: in the
+     * registered {@link CiCorpusMirror} if there is one, otherwise by checking each document concurrently. So the cost
+     * scales with the number of requested documents, not with the size of the corpus. Above
+     * {@link #MAX_TARGETED_LOOKUPS} requested documents, the corpus is listed after all.
      * @param limit Limit, or -1 for no limit.
      * @param onlyIds Only process these documents.
      */
@@ -102,30 +170,47 @@ public class CiCorpusHelper
         else
             log.debug("Getting documents {} from corpus '{}'...", onlyIds, CiUtil.getNameFromId(corpus.getId()));
 
-        Map<String, Object> parameters = new HashMap<>();
-        if (limit == NO_LIMIT)
-            parameters.put(ConceptInsights.LIMIT, 0); // 0 will get the maximum of 100.000 documents
-        else
-            parameters.put(ConceptInsights.LIMIT, limit); // 0 will get the maximum of 100.000 documents
-        List<String> documentIds = conceptInsightsService.listDocuments(corpus, parameters).getDocuments();
-        if ( ! onlyIds.isEmpty())
-            documentIds.retainAll(onlyIds);
+        Set<String> onlyIdSet = new LinkedHashSet<>(onlyIds);
+        CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+        if ( ! onlyIdSet.isEmpty() && (mirror != null || onlyIdSet.size() <= MAX_TARGETED_LOOKUPS)) {
+            Set<String> documentIds = new HashSet<>();
+            for (String id : getExistingDocumentIds(conceptInsightsService, corpus, onlyIdSet)) {
+                if (limit != NO_LIMIT && documentIds.size() >= limit)
+                    break;
+                documentIds.add(id);
+            }
+            log.trace("documentIds = {}", () -> documentIds);
+            return documentIds;
+        }
+
+        // Don't fetch a full page when we only need a few ids
+        int pageSize = limit == NO_LIMIT || ! onlyIdSet.isEmpty() ? PAGE_SIZE : Math.max(1, Math.min(limit, PAGE_SIZE));
+        Iterator<String> ids = mirror != null
+                ? mirror.getDocumentIds().iterator()
+                : iterateDocumentIds(conceptInsightsService, corpus, pageSize);
+        Set<String> documentIds = new HashSet<>();
+        while (ids.hasNext() && (limit == NO_LIMIT || documentIds.size() < limit)) {
+            String id = ids.next();
+            if (onlyIdSet.isEmpty() || onlyIdSet.contains(id))
+                documentIds.add(id);
+        }
         log.trace("documentIds = {}", () -> documentIds);
-        if (documentIds.size() == 100000)
-            log.warn("Received 100000 documents from CI. This means that there are probablye more than 100000 documents," +
-                    "so we should fetch documents incrementally.");
-        return new HashSet<>(documentIds);
+        return documentIds;
     }
 
     @Deprecated
     public static Set<String> getAllDocumentNames(ConceptInsights conceptInsightsService, Corpus corpus)
     {
+        CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+        if (mirror != null)
+            return new HashSet<>(mirror.getDocumentNames());
         return map(getAllDocumentIds(conceptInsightsService, corpus), CiUtil::getNameFromId);
     }
 
     public static Document getDocumentById(ConceptInsights conceptInsightsService, Corpus corpus, String documentId)
     {
-        return conceptInsightsService.getDocument(new Document(corpus, CiUtil.getNameFromId(documentId)));
+        Document document = new Document(corpus, CiUtil.getNameFromId(documentId));
+        return CiConcurrencyLimiter.getDefault().call(() -> conceptInsightsService.getDocument(document));
     }
 
     @Deprecated
@@ -152,11 +237,18 @@ public class CiCorpusHelper
         return map(getDocumentIds(conceptInsightsService, corpus, limit, onlyIds), id -> CiUtil.getDocumentFromId(id, corpus));
     }
 
+    /**
+     * Finds documents whose name contains the query. Uses the name index of the registered {@link CiCorpusMirror} if
+     * there is one, otherwise lists the whole corpus.
+     */
     public static List<Document> findDocumentsByPartialName(ConceptInsights conceptInsightsService, Corpus corpus, String query)
     {
-        return getDocumentIds(conceptInsightsService, corpus, NO_LIMIT).stream()
+        CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+        if (mirror != null)
+            return map(mirror.findDocumentNames(query), name -> new Document(corpus, name));
+        return streamDocumentIds(conceptInsightsService, corpus)
                 .filter(
-                        id -> containsNormalized(CiUtil.getNameFromId(id), query)
+                        id -> CiDocumentNameIndex.containsNormalized(CiUtil.getNameFromId(id), query)
                 )
                 .map(
                         id -> CiUtil.getDocumentFromId(id, corpus)
@@ -164,9 +256,89 @@ public class CiCorpusHelper
                 .collect(Collectors.toList());
     }
 
+    /**
+     * @return Those of the given document ids that exist in the corpus, in the given order. Uses the registered
+     *     {@link CiCorpusMirror} if there is one, otherwise asks CI for each document concurrently.
+     * @throws RuntimeException If the existence of a document could not be checked, other than because it doesn't
+     *     exist. The first failure is thrown after all documents have been checked.
+     */
+    public static List<String> getExistingDocumentIds(ConceptInsights conceptInsightsService, Corpus corpus,
+            Collection<String> documentIds)
+    {
+        CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+        if (mirror != null)
+            return documentIds.stream()
+                    .filter(id -> mirror.contains(CiUtil.getNameFromId(id)))
+                    .collect(Collectors.toList());
+
+        log.debug("Checking existence of {} documents in corpus '{}'...", documentIds.size(), corpus.getId());
+        Set<String> existingIds = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        List<RuntimeException> failures = Collections.synchronizedList(new ArrayList<>());
+        try (BoundedExecutor executor = new BoundedExecutor(EXISTENCE_CHECK_CONCURRENCY, "ci-existence-checker")) {
+            for (String documentId : documentIds) {
+                executor.submit(() -> {
+                    try {
+                        if (documentExists(conceptInsightsService, CiUtil.getDocumentFromId(documentId, corpus)))
+                            existingIds.add(documentId);
+                    } catch (RuntimeException e) {
+                        log.error("Could not check existence of document {}", documentId, e);
+                        failures.add(e);
+                    }
+                });
+            }
+            executor.awaitCompletion();
+        }
+        if ( ! failures.isEmpty())
+            throw new RuntimeException("Could not check existence of " + failures.size() + " of " + documentIds.size()
+                    + " documents in corpus " + corpus.getId(), failures.get(0));
+        return documentIds.stream().filter(existingIds::contains).collect(Collectors.toList());
+    }
+
+    /**
+     * Asks for the processing state of the document, which is much smaller than the document itself.
+     * @throws RuntimeException If the request failed for another reason than that the document doesn't exist
+     */
+    private static boolean documentExists(ConceptInsights conceptInsightsService, Document document)
+    {
+        try {
+            CiRetryPolicy.DEFAULT.call(() -> CiConcurrencyLimiter.getDefault().call(
+                    () -> conceptInsightsService.getDocumentProcessingState(document)),
+                    e -> log.debug("Retrying existence check of document {}", document.getId())
+            );
+            return true;
+        } catch (RuntimeException e) {
+            if (isNotFound(e))
+                return false;
+            throw e;
+        }
+    }
+
+    /**
+     * @return Whether the exception means that the requested resource doesn't exist.
+     */
+    static boolean isNotFound(Exception e)
+    {
+        // CI reports some missing resources as a bad request, see getOrCreateCorpus
+        return e instanceof NotFoundException
+                || e instanceof BadRequestException && Objects.equals(e.getMessage(), "not found");
+    }
+
+    private static List<String> getPageOfDocumentIds(ConceptInsights conceptInsightsService, Corpus corpus, int cursor,
+            int pageSize)
+    {
+        log.trace("Getting {} document ids from corpus '{}', starting at {}", pageSize, corpus.getId(), cursor);
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(ConceptInsights.CURSOR, cursor);
+        parameters.put(ConceptInsights.LIMIT, pageSize);
+        return CiRetryPolicy.DEFAULT.call(
+                () -> CiConcurrencyLimiter.getDefault().call(() -> conceptInsightsService.listDocuments(corpus, parameters)),
+                e -> log.debug("Retrying listing of corpus '{}' at {}", corpus.getId(), cursor)
+        ).getDocuments();
+    }
+
     static void populate(ConceptInsights conceptInsightsService, Document document)
     {
-        Document fullDocument = conceptInsightsService.getDocument(document);
+        Document fullDocument = CiConcurrencyLimiter.getDefault().call(() -> conceptInsightsService.getDocument(document));
         assert Objects.equals(document.getId(), fullDocument.getId());
         assert Objects.equals(document.getName(), fullDocument.getName());
         document.setExpiresOn(fullDocument.getExpiresOn());
@@ -0,0 +1,516 @@
+package gmjonker.citool;
+
+import com.google.common.base.Stopwatch;
+import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights;
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpus;
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Document;
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.DocumentProcessingStatus;
+import gmjonker.util.LambdaLogger;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local copy of the names and metadata (label, last modified and user fields) of all documents in a corpus.
+ *
+ * <p>The mirror is refreshed from CI when it is older than its time to live. A refresh lists the corpus, drops
+ * documents that are gone, and fetches metadata of documents it doesn't know yet. Of known documents it gets the last
+ * modified time with a processing state request, which doesn't download the document, and fetches the metadata again
+ * only of documents that were modified since, e.g. by other processes. Writes done through {@link CiDocumentUploader}
+ * are applied to the mirror directly, so they don't require a refresh. Their last modified time is set by CI, so it is
+ * filled in on the next refresh.
+ *
+ * <p>When a mirror is {@link #register(CiCorpusMirror) registered}, the document lookups of {@link CiCorpusHelper} are
+ * served from it instead of listing the corpus each time. The mirror can be saved to a gzipped snapshot file, so that
+ * the next process starts warm. The snapshot is saved after each refresh, and after writes by the uploader and at
+ * shutdown if the mirror changed since it was last saved.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiCorpusMirror
+{
+    private static final int SNAPSHOT_MAGIC = 0x43494d31; // "CIM1"
+    private static final Map<String, CiCorpusMirror> registeredMirrors = new ConcurrentHashMap<>();
+    /** Mirrors with a snapshot file, saved at shutdown if they changed. */
+    private static final Set<CiCorpusMirror> mirrorsToSave = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> mirrorsToSave.forEach(CiCorpusMirror::saveSnapshotIfDirty),
+                "ci-mirror-shutdown"));
+    }
+
+    private final ConceptInsights conceptInsightsService;
+    private final Corpus corpus;
+    private final long timeToLiveMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final CiDocumentNameIndex nameIndex = new CiDocumentNameIndex();
+    private boolean fetchMetaData = true;
+    private int concurrency = 4;
+    @Nullable private File snapshotFile = null;
+    /** Whether the mirror changed since the snapshot was last saved. */
+    private volatile boolean dirty = false;
+    private volatile long lastRefreshMillis = 0; // Wall clock, so that it survives a snapshot
+
+    private static final LambdaLogger log = new LambdaLogger(CiCorpusMirror.class);
+
+    /**
+     * @param timeToLiveMillis Age after which the mirror is refreshed from CI on the next lookup
+     */
+    public CiCorpusMirror(ConceptInsights conceptInsightsService, Corpus corpus, long timeToLiveMillis)
+    {
+        this.conceptInsightsService = conceptInsightsService;
+        this.corpus = corpus;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * Makes {@link CiCorpusHelper} and {@link CiDocumentUploader} use this mirror for its corpus. A mirror that was
+     * registered for the corpus before is unregistered.
+     */
+    public static void register(CiCorpusMirror mirror)
+    {
+        CiCorpusMirror previousMirror = registeredMirrors.put(mirror.corpus.getId(), mirror);
+        if (previousMirror != null && previousMirror != mirror)
+            previousMirror.release();
+    }
+
+    /**
+     * Unregisters the mirror of the corpus, if any, and saves its snapshot if it changed.
+     */
+    public static void unregister(Corpus corpus)
+    {
+        CiCorpusMirror mirror = registeredMirrors.remove(corpus.getId());
+        if (mirror != null)
+            mirror.release();
+    }
+
+    /**
+     * @return The registered mirror for the corpus, or null if there is none.
+     */
+    @Nullable
+    public static CiCorpusMirror get(Corpus corpus)
+    {
+        return registeredMirrors.get(corpus.getId());
+    }
+
+    /**
+     * Sets whether metadata of new documents is fetched during a refresh. Default is true. Without metadata, the
+     * mirror only knows document names, which makes refreshing much cheaper.
+     */
+    public CiCorpusMirror setFetchMetaData(boolean fetchMetaData)
+    {
+        this.fetchMetaData = fetchMetaData;
+        return this;
+    }
+
+    /**
+     * Sets the number of documents whose metadata is fetched concurrently. Default is 4.
+     */
+    public CiCorpusMirror setConcurrency(int concurrency)
+    {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1, got " + concurrency);
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Sets the file the mirror is saved to after each refresh, and loads it if it exists and belongs to this corpus.
+     * Changes that were not saved yet are saved when the mirror is unregistered, or at shutdown.
+     */
+    public CiCorpusMirror setSnapshotFile(File snapshotFile) throws IOException
+    {
+        mirrorsToSave.add(this);
+        this.snapshotFile = snapshotFile;
+        if (snapshotFile.exists())
+            loadSnapshot();
+        return this;
+    }
+
+    /**
+     * @return Names of all documents in the corpus.
+     */
+    public Set<String> getDocumentNames()
+    {
+        ensureFresh();
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * @return Ids of all documents in the corpus.
+     */
+    public Set<String> getDocumentIds()
+    {
+        ensureFresh();
+        Set<String> documentIds = new HashSet<>();
+        for (String name : entries.keySet())
+            documentIds.add(new Document(corpus, name).getId());
+        return documentIds;
+    }
+
+    public boolean contains(String documentName)
+    {
+        ensureFresh();
+        return entries.containsKey(documentName);
+    }
+
+    /**
+     * @return The mirrored document, or null if the document is not in the corpus.
+     */
+    @Nullable
+    public Entry getEntry(String documentName)
+    {
+        ensureFresh();
+        return entries.get(documentName);
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Records that the document was added or updated by us. If the document has no last modified time from CI, it is
+     * unknown until the next refresh.
+     */
+    public void put(Document document)
+    {
+        Date lastModified = document.getLastModified();
+        putEntry(new Entry(document.getName(), true, document.getLabel(),
+                lastModified != null ? lastModified.getTime() : -1, document.getUserFields()));
+    }
+
+    /**
+     * Records that the document was deleted by us.
+     */
+    public void remove(String documentName)
+    {
+        entries.remove(documentName);
+        nameIndex.remove(documentName);
+        dirty = true;
+    }
+
+    /**
+     * @return Names of documents that contain the query, ignoring case and accents. See {@link CiDocumentNameIndex}.
+     */
+    public List<String> findDocumentNames(String query)
+    {
+        ensureFresh();
+        return nameIndex.find(query);
+    }
+
+    /**
+     * Makes the next lookup refresh the mirror, and refetch the metadata of all documents.
+     */
+    public synchronized void invalidate()
+    {
+        entries.clear();
+        nameIndex.clear();
+        lastRefreshMillis = 0;
+    }
+
+    /**
+     * Refreshes the mirror if it is older than its time to live.
+     */
+    public synchronized void ensureFresh()
+    {
+        if (System.currentTimeMillis() - lastRefreshMillis > timeToLiveMillis)
+            refresh();
+    }
+
+    /**
+     * Lists the corpus, removes documents that no longer exist, adds new ones, and updates the ones that were modified
+     * since they were mirrored. Saves a snapshot if a snapshot file was set.
+     */
+    public synchronized void refresh()
+    {
+        log.debug("Refreshing mirror of corpus '{}'...", corpus.getId());
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        long refreshStartMillis = System.currentTimeMillis();
+        Set<String> namesInCorpus = new HashSet<>();
+        List<String> newNames = new ArrayList<>();
+        List<String> knownNames = new ArrayList<>();
+        Iterator<String> documentIds = CiCorpusHelper.iterateDocumentIds(conceptInsightsService, corpus);
+        while (documentIds.hasNext()) {
+            String name = CiUtil.getNameFromId(documentIds.next());
+            namesInCorpus.add(name);
+            Entry entry = entries.get(name);
+            if (entry == null)
+                newNames.add(name);
+            else if (fetchMetaData && entry.hasMetaData)
+                knownNames.add(name);
+        }
+        int numRemoved = 0;
+        for (String name : new ArrayList<>(entries.keySet())) {
+            if ( ! namesInCorpus.contains(name)) {
+                remove(name);
+                numRemoved++;
+            }
+        }
+        addEntries(newNames);
+        int numModified = updateEntries(knownNames);
+        lastRefreshMillis = refreshStartMillis;
+        dirty = true;
+        log.info("Refreshed mirror of corpus '{}' in {}: {} documents, {} new, {} modified, {} removed", corpus.getId(),
+                stopwatch, entries.size(), newNames.size(), numModified, numRemoved);
+        saveSnapshotIfDirty();
+    }
+
+    /**
+     * Saves the snapshot if a snapshot file was set and the mirror changed since it was last saved. Failures are
+     * logged, not thrown.
+     */
+    public synchronized void saveSnapshotIfDirty()
+    {
+        if (snapshotFile == null || ! dirty)
+            return;
+        try {
+            saveSnapshot();
+        } catch (IOException e) {
+            log.warn("Could not save snapshot of corpus mirror to {}: {}", snapshotFile, e.toString());
+        }
+    }
+
+    /**
+     * Writes the mirror to the snapshot file. Writes to a temporary file first, so that a crash during saving doesn't
+     * leave a corrupt snapshot behind.
+     */
+    public synchronized void saveSnapshot() throws IOException
+    {
+        if (snapshotFile == null)
+            throw new IllegalStateException("No snapshot file set");
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        // Changes made while saving mark the mirror dirty again
+        dirty = false;
+        List<Entry> entriesToSave = new ArrayList<>(entries.values());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                new FileOutputStream(tempFile))))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            writeString(out, corpus.getId());
+            out.writeLong(lastRefreshMillis);
+            out.writeInt(entriesToSave.size());
+            for (Entry entry : entriesToSave) {
+                writeString(out, entry.name);
+                out.writeBoolean(entry.hasMetaData);
+                if ( ! entry.hasMetaData)
+                    continue;
+                writeString(out, entry.label);
+                out.writeLong(entry.lastModifiedMillis);
+                out.writeInt(entry.userFields == null ? -1 : entry.userFields.size());
+                if (entry.userFields != null) {
+                    for (Map.Entry<String, String> userField : entry.userFields.entrySet()) {
+                        writeString(out, userField.getKey());
+                        writeString(out, userField.getValue());
+                    }
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        log.debug("Saved mirror of {} documents to {}", entriesToSave.size(), snapshotFile);
+    }
+
+    private synchronized void loadSnapshot() throws IOException
+    {
+        assert snapshotFile != null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                new FileInputStream(snapshotFile))))) {
+            if (in.readInt() != SNAPSHOT_MAGIC)
+                throw new IOException("Not a corpus mirror snapshot: " + snapshotFile);
+            String corpusId = readString(in);
+            if ( ! Objects.equals(corpusId, corpus.getId())) {
+                log.warn("Ignoring snapshot {}, it is of corpus {}", snapshotFile, corpusId);
+                return;
+            }
+            long refreshMillis = in.readLong();
+            int numEntries = in.readInt();
+            Map<String, Entry> loadedEntries = new HashMap<>();
+            for (int i = 0; i < numEntries; i++) {
+                String name = readString(in);
+                if ( ! in.readBoolean()) {
+                    loadedEntries.put(name, new Entry(name, false, null, -1, null));
+                    continue;
+                }
+                String label = readString(in);
+                long lastModifiedMillis = in.readLong();
+                int numUserFields = in.readInt();
+                Map<String, String> userFields = null;
+                if (numUserFields >= 0) {
+                    userFields = new HashMap<>();
+                    for (int j = 0; j < numUserFields; j++)
+                        userFields.put(readString(in), readString(in));
+                }
+                loadedEntries.put(name, new Entry(name, true, label, lastModifiedMillis, userFields));
+            }
+            entries.clear();
+            entries.putAll(loadedEntries);
+            nameIndex.clear();
+            nameIndex.addAll(loadedEntries.keySet());
+            lastRefreshMillis = refreshMillis;
+        }
+        log.info("Loaded mirror of {} documents of corpus '{}' from {}", entries.size(), corpus.getId(), snapshotFile);
+    }
+
+    private void addEntries(List<String> names)
+    {
+        if ( ! fetchMetaData) {
+            for (String name : names)
+                putEntry(new Entry(name, false, null, -1, null));
+            return;
+        }
+        try (BoundedExecutor executor = new BoundedExecutor(concurrency, "ci-mirror")) {
+            for (String name : names) {
+                executor.submit(() -> {
+                    Document document = new Document(corpus, name);
+                    try {
+                        CiCorpusHelper.populate(conceptInsightsService, document);
+                        put(document);
+                    } catch (Exception e) {
+                        log.warn("Could not get metadata of document {}: {}", name, e.toString());
+                        putEntry(new Entry(name, false, null, -1, null));
+                    }
+                });
+            }
+            executor.awaitCompletion();
+        }
+    }
+
+    /**
+     * Gets the last modified time of documents whose metadata is known, with a processing state request per document,
+     * and fetches the metadata again of documents that were modified since. There is no request for only the metadata
+     * of a document, {@link CiCorpusHelper#populate} downloads the parts as well. Documents we wrote ourselves, whose
+     * last modified time was unknown, only get their last modified time.
+     * @return Number of documents whose metadata was fetched again
+     */
+    private int updateEntries(List<String> names)
+    {
+        if (names.isEmpty())
+            return 0;
+        AtomicInteger numModified = new AtomicInteger();
+        try (BoundedExecutor executor = new BoundedExecutor(concurrency, "ci-mirror")) {
+            for (String name : names) {
+                executor.submit(() -> {
+                    Entry entry = entries.get(name);
+                    if (entry == null)
+                        return;
+                    try {
+                        DocumentProcessingStatus state = CiConcurrencyLimiter.getDefault().call(
+                                () -> conceptInsightsService.getDocumentProcessingState(new Document(corpus, name)));
+                        if (state == null || state.getLastModified() == null)
+                            return;
+                        long lastModifiedMillis = state.getLastModified().getTime();
+                        if (lastModifiedMillis == entry.lastModifiedMillis)
+                            return;
+                        if (entry.lastModifiedMillis == -1) {
+                            replaceEntry(entry, new Entry(name, true, entry.label, lastModifiedMillis, entry.userFields));
+                            return;
+                        }
+                        Document document = new Document(corpus, name);
+                        CiCorpusHelper.populate(conceptInsightsService, document);
+                        Date populatedLastModified = document.getLastModified();
+                        replaceEntry(entry, new Entry(name, true, document.getLabel(),
+                                populatedLastModified != null ? populatedLastModified.getTime() : lastModifiedMillis,
+                                document.getUserFields()));
+                        numModified.incrementAndGet();
+                    } catch (Exception e) {
+                        log.warn("Could not update metadata of document {}: {}", name, e.toString());
+                    }
+                });
+            }
+            executor.awaitCompletion();
+        }
+        return numModified.get();
+    }
+
+    private void putEntry(Entry entry)
+    {
+        entries.put(entry.name, entry);
+        nameIndex.add(entry.name);
+        dirty = true;
+    }
+
+    /**
+     * Replaces the entry, unless it was changed or removed in the meantime, e.g. by a write of the uploader.
+     */
+    private void replaceEntry(Entry oldEntry, Entry newEntry)
+    {
+        if (entries.replace(oldEntry.name, oldEntry, newEntry))
+            dirty = true;
+    }
+
+    /**
+     * Saves the snapshot if it changed, and stops saving it at shutdown.
+     */
+    private void release()
+    {
+        saveSnapshotIfDirty();
+        mirrorsToSave.remove(this);
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String string) throws IOException
+    {
+        // writeUTF is limited to 64 kB, which is not enough for all user fields. -1 marks null.
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length == -1)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A mirrored document.
+     */
+    public static class Entry
+    {
+        public final String name;
+        /** False if only the name is known, e.g. when fetching metadata failed or was disabled. */
+        public final boolean hasMetaData;
+        @Nullable public final String label;
+        /** Milliseconds since the epoch, or -1 if unknown. */
+        public final long lastModifiedMillis;
+        @Nullable public final Map<String, String> userFields;
+
+        Entry(String name, boolean hasMetaData, @Nullable String label, long lastModifiedMillis,
+                @Nullable Map<String, String> userFields)
+        {
+            this.name = name;
+            this.hasMetaData = hasMetaData;
+            this.label = label;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.userFields = userFields == null ? null : Collections.unmodifiableMap(new HashMap<>(userFields));
+        }
+
+        /**
+         * @return A document with the name, label and user fields of this entry, without parts.
+         */
+        public Document toDocument(Corpus corpus)
+        {
+            Document document = new Document(corpus, name);
+            document.setLabel(label);
+            document.setUserFields(userFields);
+            if (lastModifiedMillis != -1)
+                document.setLastModified(new Date(lastModifiedMillis));
+            return document;
+        }
+    }
+}
@@ -28,6 +28,7 @@ public class CiCorpusQuerier
 {
     private ConceptInsights conceptInsightsService;
     private Corpus corpus;
+    private CiConcurrencyLimiter limiter = CiConcurrencyLimiter.getDefault();
 
     private static final LambdaLogger log = new LambdaLogger(CiCorpusQuerier.class);
 
@@ -37,6 +38,15 @@ public class CiCorpusQuerier
         this.corpus = corpus;
     }
 
+    /**
+     * Sets the limiter that adapts the number of concurrent calls to Watson. Default is
+     * {@link CiConcurrencyLimiter#getDefault()}.
+     */
+    public void setConcurrencyLimiter(CiConcurrencyLimiter limiter)
+    {
+        this.limiter = limiter;
+    }
+
     public List<MatchedDocument> searchDocumentsByConceptNames(List<String> conceptNames, int limit)
     {
         final List<String> ids = new ArrayList<>();
@@ -58,7 +68,7 @@ public class CiCorpusQuerier
         params.put(ConceptInsights.DOCUMENT_FIELDS, documentFields);
         log.trace("params = " + params);
         try {
-            QueryConcepts queryConcepts = conceptInsightsService.conceptualSearch(corpus, params);
+            QueryConcepts queryConcepts = limiter.call(() -> conceptInsightsService.conceptualSearch(corpus, params));
             for (Concept concept : queryConcepts.getQueryConcepts()) {
                 log.debug("Query concept = " + concept.getLabel());
             }
@@ -0,0 +1,52 @@
+package gmjonker.citool;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes relations as CSV, with a header of concept names and one row per document. Cells of concepts without a score
+ * are empty. Each row is flushed when it is written, so that the file can be read while the sweep is running.
+ */
+public class CiCsvRelationSink implements CiRelationSink
+{
+    private final CSVPrinter printer;
+    private final List<String> conceptNames;
+
+    /**
+     * @param conceptNames Names of the columns. Scores of other concepts are left out.
+     */
+    public CiCsvRelationSink(Writer writer, List<String> conceptNames) throws IOException
+    {
+        this.printer = new CSVPrinter(writer, CSVFormat.EXCEL);
+        this.conceptNames = new ArrayList<>(conceptNames);
+        printer.print("document");
+        for (String conceptName : conceptNames)
+            printer.print(conceptName);
+        printer.println();
+        printer.flush();
+    }
+
+    @Override
+    public void accept(String documentName, Map<String, Double> scores) throws IOException
+    {
+        printer.print(documentName);
+        for (String conceptName : conceptNames) {
+            Double score = scores.get(conceptName);
+            printer.print(score != null ? score : "");
+        }
+        printer.println();
+        printer.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        printer.close();
+    }
+}
@@ -9,7 +9,8 @@ public class CiDocument
 {
     public String name;  // The id of the document. Must be URL-safe.
     public String label; // Can be anything.
-    public String body;  // For now, a single piece of plain text.
+    public String body;  // For now, a single piece of plain text. Ignored when lazyBody is set.
+    public CiDocumentBody lazyBody; // Body that is only read when the document is uploaded.
     public Map<String, String> userFields;
 
     // GroovyBean
@@ -24,4 +25,27 @@ public class CiDocument
         this.body = body;
         this.userFields = userFields;
     }
+
+    public static CiDocument withLazyBody(String name, String label, CiDocumentBody lazyBody, Map<String, String> userFields)
+    {
+        CiDocument ciDocument = new CiDocument(name, label, null, userFields);
+        ciDocument.lazyBody = lazyBody;
+        return ciDocument;
+    }
+
+    /**
+     * @return The text of the body. If the body is lazy, it is read now.
+     */
+    public String readBody()
+    {
+        return lazyBody != null ? lazyBody.read() : body;
+    }
+
+    /**
+     * @return Whether the body is known to be empty without reading it. See {@link CiDocumentBody#isKnownEmpty()}.
+     */
+    public boolean isBodyKnownEmpty()
+    {
+        return lazyBody != null ? lazyBody.isKnownEmpty() : body == null || body.isEmpty();
+    }
 }
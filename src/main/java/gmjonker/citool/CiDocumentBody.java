@@ -0,0 +1,169 @@
+package gmjonker.citool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Supplier;
+
+/**
+ * The text of a {@link CiDocument} that is only read when it is needed, i.e. when the upload request for the document
+ * is built. This allows uploading corpora that don't fit in memory.
+ */
+public abstract class CiDocumentBody
+{
+    /**
+     * @return A body with text that is already in memory.
+     */
+    public static CiDocumentBody of(String text)
+    {
+        return new StringBody(text);
+    }
+
+    /**
+     * @return A body that reads the whole UTF-8 encoded file.
+     */
+    public static CiDocumentBody ofFile(Path path)
+    {
+        return new FileBody(path);
+    }
+
+    /**
+     * @return A body that maps a region of a UTF-8 encoded file into memory and decodes it. Useful for documents that
+     *     are stored back to back in one big dump file.
+     */
+    public static CiDocumentBody ofMappedRegion(Path path, long offset, int length)
+    {
+        return new MappedRegionBody(path, offset, length);
+    }
+
+    /**
+     * @return A body that calls the supplier each time the text is needed.
+     */
+    public static CiDocumentBody ofSupplier(Supplier<String> supplier)
+    {
+        return new SupplierBody(supplier);
+    }
+
+    /**
+     * @return The full text.
+     * @throws UncheckedIOException When the text could not be read
+     */
+    public abstract String read();
+
+    /**
+     * @return Whether the text is known to be empty without reading it. A body that can only tell by reading the text
+     *     returns false, and is checked for emptiness when it is read for the upload.
+     */
+    public abstract boolean isKnownEmpty();
+
+    private static class StringBody extends CiDocumentBody
+    {
+        private final String text;
+
+        StringBody(String text)
+        {
+            this.text = text;
+        }
+
+        @Override
+        public String read()
+        {
+            return text;
+        }
+
+        @Override
+        public boolean isKnownEmpty()
+        {
+            return text == null || text.isEmpty();
+        }
+    }
+
+    private static class FileBody extends CiDocumentBody
+    {
+        private final Path path;
+
+        FileBody(Path path)
+        {
+            this.path = path;
+        }
+
+        @Override
+        public String read()
+        {
+            try {
+                return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read document body from " + path, e);
+            }
+        }
+
+        @Override
+        public boolean isKnownEmpty()
+        {
+            try {
+                return Files.size(path) == 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read document body from " + path, e);
+            }
+        }
+    }
+
+    private static class MappedRegionBody extends CiDocumentBody
+    {
+        private final Path path;
+        private final long offset;
+        private final int length;
+
+        MappedRegionBody(Path path, long offset, int length)
+        {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String read()
+        {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                return StandardCharsets.UTF_8.decode(buffer).toString();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read document body from " + path + " at " + offset, e);
+            }
+        }
+
+        @Override
+        public boolean isKnownEmpty()
+        {
+            return length == 0;
+        }
+    }
+
+    private static class SupplierBody extends CiDocumentBody
+    {
+        private final Supplier<String> supplier;
+
+        SupplierBody(Supplier<String> supplier)
+        {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public String read()
+        {
+            return supplier.get();
+        }
+
+        @Override
+        public boolean isKnownEmpty()
+        {
+            // Producing the text may be expensive, and it is produced again for the upload
+            return false;
+        }
+    }
+}
@@ -3,20 +3,25 @@ package gmjonker.citool;
 import com.google.common.collect.*;
 import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights;
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.*;
+import com.ibm.watson.developer_cloud.service.BadRequestException;
+import gmjonker.citool.domain.RelationMatrix;
 import gmjonker.util.LambdaLogger;
 import lombok.Cleanup;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
 
-import java.io.FileWriter;
+import javax.annotation.Nullable;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import static gmjonker.util.CollectionsUtil.filter;
 import static gmjonker.util.CollectionsUtil.map;
+import static gmjonker.util.FormattingUtil.nanosToString;
 import static java.util.Collections.emptySet;
 
 /**
@@ -25,11 +30,24 @@ import static java.util.Collections.emptySet;
 public class CiDocumentConceptRelater
 {
     public static final int NO_LIMIT = -1;
+    /** Initial number of concepts per request. */
     public static final int CONCEPT_BATCH_SIZE = 20;
+    public static final int MAX_CONCEPT_BATCH_SIZE = 100;
 
     private final ConceptInsights conceptInsightsService;
     private final Corpus corpus;
-    private final boolean writeFailedRequests;
+    private CiConcurrencyLimiter limiter = CiConcurrencyLimiter.getDefault();
+    private CiBatchSizer batchSizer = new CiBatchSizer(CONCEPT_BATCH_SIZE, 1, MAX_CONCEPT_BATCH_SIZE);
+    private CiRetryPolicy retryPolicy = new CiRetryPolicy(2, 500, 30000);
+    private int concurrency = 1;
+    @Nullable private File failureLogFile;
+    @Nullable private File checkpointFile = null;
+    @Nullable private CiGraphQuerier conceptValidator;
+    private boolean checkReadiness = true;
+    private long readinessPollMillis = TimeUnit.SECONDS.toMillis(30);
+    private long readinessTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+    /** Ids of concepts that made a request fail on their own. They are left out of later requests. */
+    private final Set<String> badConceptIds = ConcurrentHashMap.newKeySet();
 
     private static final LambdaLogger log = new LambdaLogger(CiDocumentConceptRelater.class);
 
@@ -38,7 +56,98 @@ public class CiDocumentConceptRelater
     {
         this.conceptInsightsService = conceptInsightsService;
         this.corpus = corpus;
-        this.writeFailedRequests = writeFailedRequests;
+        this.failureLogFile = writeFailedRequests ? new File("failedRequests.csv") : null;
+        this.conceptValidator = new CiGraphQuerier(conceptInsightsService);
+    }
+
+    /**
+     * Sets the querier that checks whether the concepts exist in Watson before their relations are requested, or null
+     * to not check them. Concepts that don't exist are skipped. Default is a querier on the same service with its own
+     * existence cache; use one with a persistent {@link CiConceptExistenceCache} to avoid checking the same concepts on
+     * every run.
+     */
+    public void setConceptValidator(@Nullable CiGraphQuerier conceptValidator)
+    {
+        this.conceptValidator = conceptValidator;
+    }
+
+    /**
+     * Sets the limiter that adapts the number of concurrent calls to Watson. Default is
+     * {@link CiConcurrencyLimiter#getDefault()}.
+     */
+    public void setConcurrencyLimiter(CiConcurrencyLimiter limiter)
+    {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Sets the file that requests that failed are written to, or null to not write them. Default is
+     * failedRequests.csv if writeFailedRequests was passed to the constructor. See {@link #replayFailures(File)}.
+     */
+    public void setFailureLog(@Nullable File failureLogFile)
+    {
+        this.failureLogFile = failureLogFile;
+    }
+
+    /**
+     * Sets a file that completed documents are written to. A sweep that is run again with the same checkpoint file
+     * skips the documents in it and takes their relations from the file. The checkpoint is deleted when a sweep
+     * completes without failures. See {@link CiRelationCheckpoint}.
+     */
+    public void setCheckpointFile(@Nullable File checkpointFile)
+    {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Sets the sizer that determines the number of concepts per request. Default adapts between 1 and
+     * {@link #MAX_CONCEPT_BATCH_SIZE}, starting at {@link #CONCEPT_BATCH_SIZE}. Use {@link CiBatchSizer#fixed(int)} for
+     * a fixed size.
+     */
+    public void setBatchSizer(CiBatchSizer batchSizer)
+    {
+        this.batchSizer = batchSizer;
+    }
+
+    /**
+     * Sets the policy for retrying a batch that failed because of overload, timeouts or network problems. Default
+     * retries a batch once. Sub-batches of a batch that is split to find a bad concept are not retried.
+     */
+    public void setRetryPolicy(CiRetryPolicy retryPolicy)
+    {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets whether to get the processing state of all documents before requesting their relations. Default is true.
+     * Documents that failed to process or don't exist are skipped, and documents that are still processing are
+     * deferred until they are ready, instead of failing every request. See {@link CiDocumentReadinessChecker}.
+     */
+    public void setCheckReadiness(boolean checkReadiness)
+    {
+        this.checkReadiness = checkReadiness;
+    }
+
+    /**
+     * Sets how often the state of deferred documents is checked again, and how long to wait for them in total.
+     * Default is every 30 seconds, for at most 10 minutes. Documents that are still processing after that are written
+     * to the failure log.
+     */
+    public void setReadinessPolling(long pollMillis, long timeoutMillis)
+    {
+        this.readinessPollMillis = pollMillis;
+        this.readinessTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets the number of requests that are sent to Watson concurrently. Default is 1. Requests for different documents
+     * and different batches of concepts of the same document all run in parallel.
+     */
+    public void setConcurrency(int concurrency)
+    {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1, got " + concurrency);
+        this.concurrency = concurrency;
     }
 
     /**
@@ -61,76 +170,596 @@ public class CiDocumentConceptRelater
      */
     public Table<String, String, Double> getDocumentConceptNameRelations(List<Concept> concepts, int limit,
             Collection<String> onlyIds) throws IOException
+    {
+        return getDocumentConceptRelationMatrix(concepts, limit, onlyIds).asTable();
+    }
+
+    /**
+     * Determines the relations between a given set of concepts and all the documents in the corpus.
+     * @param limit Limit on the number of documents processed
+     * @param onlyIds Only process these documents
+     * @return A matrix with the document names in the rows and the concept names in the columns. Much smaller than
+     *     the table returned by {@link #getDocumentConceptNameRelations}.
+     */
+    public RelationMatrix getDocumentConceptRelationMatrix(List<Concept> concepts, int limit, Collection<String> onlyIds)
+            throws IOException
+    {
+        List<Concept> filteredConcepts = filterUnknownConcepts(concepts);
+        RelationMatrix documentConceptRelations =
+                new RelationMatrix(map(filteredConcepts, concept -> CiUtil.getNameFromId(concept.getId())));
+        sweep(filteredConcepts, limit, onlyIds, CiRelationSink.toMatrix(documentConceptRelations));
+        log.trace("documentConceptRelations = {}", () -> documentConceptRelations.asTable());
+        return documentConceptRelations;
+    }
+
+    /**
+     * Determines the relations between a given set of concepts and all the documents in the corpus, and passes the
+     * relations of each document to the sink as soon as they are complete. Memory use doesn't grow with the number of
+     * documents. The sink is not closed.
+     * @param limit Limit on the number of documents processed
+     * @param onlyIds Only process these documents
+     */
+    public void getDocumentConceptRelations(List<Concept> concepts, int limit, Collection<String> onlyIds,
+            CiRelationSink sink) throws IOException
+    {
+        sweep(filterUnknownConcepts(concepts), limit, onlyIds, sink);
+    }
+
+    private void sweep(List<Concept> concepts, int limit, Collection<String> onlyIds, CiRelationSink sink)
+            throws IOException
     {
         log.trace("concepts = {}", concepts);
         log.trace("onlyIds = {}", onlyIds);
 
         Set<Document> documents = CiCorpusHelper.getDocuments(conceptInsightsService, corpus, limit, onlyIds);
-        Table<String, String, Double> documentConceptRelations = HashBasedTable.create();
-        @Cleanup CSVPrinter failedRequestsPrinter = null;
-        try {
-            failedRequestsPrinter = new CSVPrinter(new FileWriter("failedRequests.csv"), CSVFormat.EXCEL);
-        } catch (IOException e) {
-            log.warn("Could not initialize failedRequestsPrinter");
+
+        @Cleanup CiRelationCheckpoint checkpoint = checkpointFile != null ? new CiRelationCheckpoint(checkpointFile) : null;
+        Set<String> doneNames = checkpoint != null
+                ? checkpoint.load(map(documents, Document::getName), sink)
+                : emptySet();
+        Map<Document, List<Concept>> conceptsByDocument = new LinkedHashMap<>();
+        for (Document document : documents)
+            if ( ! doneNames.contains(document.getName()))
+                conceptsByDocument.put(document, concepts);
+
+        // When resuming, the failures of the interrupted run are still relevant
+        Set<String> failedDocumentNames = relateAll(conceptsByDocument, sink, checkpoint, ! doneNames.isEmpty());
+        if (checkpoint != null && failedDocumentNames.isEmpty())
+            checkpoint.delete();
+    }
+
+    /**
+     * Brings the relations in the store up to date with the corpus and the given concepts, and saves the store. Only
+     * documents that were added or modified since they were scored are scored for all concepts. Other documents are
+     * only scored for concepts that are not in the store yet, or for which they have no score. Documents that are no
+     * longer in the corpus and concepts that are no longer given are evicted. Documents with failed requests are stored
+     * with an unknown last modified time, so that the next update scores them again.
+     *
+     * <p>Last modified times are taken from the registered {@link CiCorpusMirror} if possible, and otherwise from the
+     * processing state of each document, which doesn't download the document. The mirror is refreshed first if it is
+     * older than its time to live, which picks up documents that were modified by other processes. Documents with an
+     * unknown last modified time are always scored.
+     * @return The updated relations, which are also in the store.
+     */
+    public RelationMatrix updateDocumentConceptRelations(List<Concept> concepts, CiRelationStore store) throws IOException
+    {
+        concepts = filterUnknownConcepts(concepts);
+        Set<Document> documents = CiCorpusHelper.getDocuments(conceptInsightsService, corpus, NO_LIMIT);
+        Map<String, Long> lastModifiedByDocument = getLastModified(documents);
+
+        RelationMatrix oldRelations = store.getRelations();
+        Set<String> oldConceptNames = new HashSet<>(store.getConceptNames());
+        List<Concept> newConcepts = filter(concepts,
+                (Concept concept) -> ! oldConceptNames.contains(CiUtil.getNameFromId(concept.getId())));
+        List<String> conceptNames = map(concepts, concept -> CiUtil.getNameFromId(concept.getId()));
+        RelationMatrix documentConceptRelations = new RelationMatrix(conceptNames);
+        Map<Document, List<Concept>> conceptsByDocument = new LinkedHashMap<>();
+        int numChangedDocuments = 0;
+        for (Document document : documents) {
+            String documentName = document.getName();
+            long lastModified = lastModifiedByDocument.getOrDefault(documentName, CiRelationStore.UNKNOWN_LAST_MODIFIED);
+            boolean changed = ! store.containsDocument(documentName)
+                    || lastModified == CiRelationStore.UNKNOWN_LAST_MODIFIED
+                    || lastModified != store.getLastModified(documentName);
+            int rowIndex = documentConceptRelations.addRow(documentName);
+            if (changed) {
+                numChangedDocuments++;
+                conceptsByDocument.put(document, concepts);
+                continue;
+            }
+            // Concepts without a score are scored again, they may have failed earlier
+            List<Concept> conceptsToScore = new ArrayList<>();
+            for (int columnIndex = 0; columnIndex < conceptNames.size(); columnIndex++) {
+                double score = oldRelations.get(documentName, conceptNames.get(columnIndex));
+                if ( ! Double.isNaN(score))
+                    documentConceptRelations.put(rowIndex, columnIndex, score);
+                else
+                    conceptsToScore.add(concepts.get(columnIndex));
+            }
+            if ( ! conceptsToScore.isEmpty())
+                conceptsByDocument.put(document, conceptsToScore);
+        }
+        Set<String> documentNames = map(documents, Document::getName);
+        long numEvictedDocuments = oldRelations.getRowKeys().stream().filter(name -> ! documentNames.contains(name)).count();
+        log.info("{} of {} documents are new or modified, {} of {} concepts are new, {} documents were evicted",
+                numChangedDocuments, documents.size(), newConcepts.size(), concepts.size(), numEvictedDocuments);
+
+        Set<String> failedDocumentNames =
+                relateAll(conceptsByDocument, CiRelationSink.toMatrix(documentConceptRelations), null, false);
+        for (String failedDocumentName : failedDocumentNames)
+            lastModifiedByDocument.remove(failedDocumentName);
+
+        store.replace(documentConceptRelations, lastModifiedByDocument);
+        store.save();
+        return documentConceptRelations;
+    }
+
+    /**
+     * Requests again the relations that failed during an earlier sweep. Relations that fail again are written to the
+     * failure log, which may be the same file as the one that is replayed. If a checkpoint file is set, the replayed
+     * relations are added to it.
+     * @param failureLogFile A failure log written by an earlier sweep, see {@link #setFailureLog(File)}
+     * @return The replayed relations.
+     */
+    public RelationMatrix replayFailures(File failureLogFile) throws IOException
+    {
+        Map<Document, List<Concept>> conceptsByDocument = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Concept>> failure : CiRelationFailureLog.read(failureLogFile).entrySet())
+            conceptsByDocument.put(new Document(corpus, failure.getKey()), failure.getValue());
+        log.info("Replaying failed relations of {} documents from {}", conceptsByDocument.size(), failureLogFile);
+
+        RelationMatrix documentConceptRelations = new RelationMatrix();
+        @Cleanup CiRelationCheckpoint checkpoint = checkpointFile != null ? new CiRelationCheckpoint(checkpointFile) : null;
+        relateAll(conceptsByDocument, CiRelationSink.toMatrix(documentConceptRelations), checkpoint, false);
+        return documentConceptRelations;
+    }
+
+    /**
+     * Gets the relations of each document with its concepts, sending requests for all documents and batches of
+     * concepts concurrently.
+     * @param appendFailures Whether to add to the failure log, or to start a new one
+     * @return Names of the documents with failed requests, or that were skipped because they failed to process or were
+     *     still processing.
+     */
+    private Set<String> relateAll(Map<Document, List<Concept>> conceptsByDocument, CiRelationSink sink,
+            @Nullable CiRelationCheckpoint checkpoint, boolean appendFailures)
+    {
+        @Cleanup CiRelationFailureLog failureLog = null;
+        if (failureLogFile != null) {
+            try {
+                failureLog = new CiRelationFailureLog(failureLogFile, appendFailures);
+            } catch (IOException e) {
+                log.warn("Could not open failure log {}: {}", failureLogFile, e.toString());
+            }
+        }
+
+        Set<String> failedDocumentNames = ConcurrentHashMap.newKeySet();
+        CiRelationFailureLog finalFailureLog = failureLog;
+        Map<Document, List<Concept>> readyDocuments = new LinkedHashMap<>();
+        Map<Document, List<Concept>> deferredDocuments = new LinkedHashMap<>();
+        for (Map.Entry<Document, List<Concept>> entry : conceptsByDocument.entrySet())
+            if ( ! entry.getValue().isEmpty())
+                readyDocuments.put(entry.getKey(), entry.getValue());
+        if (checkReadiness && ! readyDocuments.isEmpty()) {
+            Map<Document, CiDocumentReadinessChecker.Readiness> readinessByDocument =
+                    newReadinessChecker().check(readyDocuments.keySet());
+            sortByReadiness(readinessByDocument, readyDocuments, deferredDocuments, finalFailureLog, failedDocumentNames);
         }
 
-        concepts = filter(concepts,
-                (Concept concept) -> {
-                    if (CiUtil.CONCEPT_NAMES_IN_WIKIPEDIA_BUT_NOT_IN_WATSON.contains(concept.getName())) {
-                        log.warnOnce("Concept '{}' not known by Watson, skipping...", concept.getName());
-                        return false;
-                    } else {
-                        return true;
-                    }
+        log.info("Getting relations of {} documents with concurrency {}, starting with {} concepts per request",
+                readyDocuments.size() + deferredDocuments.size(), concurrency, batchSizer.getSize());
+
+        Multiset<Integer> successfulConceptCounts = ConcurrentHashMultiset.create();
+        ProgressLog progressLog = new ProgressLog(readyDocuments.size() + deferredDocuments.size());
+        try (BoundedExecutor executor = new BoundedExecutor(concurrency, "ci-relater")) {
+            BiConsumer<Document, List<Concept>> submitDocument = (document, concepts) -> {
+                DocumentProgress documentProgress = new DocumentProgress(document, concepts.size());
+                // Do concepts in chunks, otherwise Watson goes boom. The size of the next chunk is determined when it
+                // is submitted, so it follows how earlier requests fared.
+                for (int from = 0; from < concepts.size(); ) {
+                    List<Concept> batch = concepts.subList(from, Math.min(from + batchSizer.getSize(), concepts.size()));
+                    from += batch.size();
+                    executor.submit(() -> {
+                        relate(document, batch, documentProgress);
+                        if ( ! documentProgress.conceptsDone(batch.size()))
+                            return;
+                        if ( ! documentProgress.failedConcepts.isEmpty()) {
+                            failedDocumentNames.add(document.getName());
+                            writeFailedConcepts(finalFailureLog, documentProgress);
+                        }
+                        emit(sink, documentProgress);
+                        writeCheckpoint(checkpoint, documentProgress);
+                        successfulConceptCounts.add(documentProgress.successfulConcepts.size());
+                        progressLog.documentDone(documentProgress);
+                    });
                 }
-        );
-        log.trace("Filtered concepts: {}", concepts);
+            };
+            readyDocuments.forEach(submitDocument);
 
-        int count = 0;
-        Multiset<Integer> successfulConceptCounts = HashMultiset.create();
-        for (Document document : documents)
-        {
-            String documentName = document.getName();
-            log.debug("Getting concept relations for doc {}/{}: '{}' ({})", count + 1, documents.size(), documentName,
-                    document.getLabel());
-            // Do concepts in small chunks, otherwise Watson goes boom.
-            List<List<Concept>> lists = Lists.partition(concepts, CONCEPT_BATCH_SIZE);
-            System.out.println("\b\b");
-            List<Concept> successfulConcepts = new ArrayList<>();
-            List<Concept> failedConcepts = new ArrayList<>();
-            for (List<Concept> conceptsSubList : lists) {
+            // Deferred documents are checked again while the ready ones are being related
+            long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readinessTimeoutMillis);
+            while ( ! deferredDocuments.isEmpty() && System.nanoTime() < deadlineNanos) {
+                log.info("Waiting for {} documents that are still processing", deferredDocuments.size());
                 try {
-                    // TODO: first check whether upload status == ok, to prevent unnecessary exceptions
-                    Scores scores = conceptInsightsService.getDocumentRelationScores(document, conceptsSubList);
-                    for (Score score : scores.getScores()) {
-                        documentConceptRelations.put(documentName, CiUtil.getNameFromId(score.getConcept()), score.getScore());
-                    }
-                    System.out.print(".");
-                    successfulConcepts.addAll(conceptsSubList);
-                } catch (Exception e) {
-                    log.error("Could not get relations for document {}, concepts {}", documentName,
-                            map(conceptsSubList, Concept::getName), e);
-                    failedConcepts.addAll(conceptsSubList);
+                    Thread.sleep(readinessPollMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
+                Map<Document, List<Concept>> nowReadyDocuments = new LinkedHashMap<>(deferredDocuments);
+                deferredDocuments.clear();
+                sortByReadiness(newReadinessChecker().check(nowReadyDocuments.keySet()), nowReadyDocuments,
+                        deferredDocuments, finalFailureLog, failedDocumentNames);
+                nowReadyDocuments.forEach(submitDocument);
             }
-            System.out.println();
-            count++;
-            if (failedConcepts.size() > 0 && failedRequestsPrinter != null) {
-                try {
-                    failedRequestsPrinter.printRecord(documentName,
-                            map(failedConcepts, concept -> CiUtil.getNameFromId(concept.getId())));
-                    failedRequestsPrinter.flush();
-                } catch (IOException e1) {
-                    log.error("Could not write failed concepts to file", e1);
-                }
+            for (Map.Entry<Document, List<Concept>> entry : deferredDocuments.entrySet()) {
+                log.warn("Document {} is still processing, skipping it", entry.getKey().getName());
+                writeFailedConcepts(finalFailureLog, entry.getKey(), entry.getValue());
+                failedDocumentNames.add(entry.getKey().getName());
             }
-            // stats.addValue(successfulConcepts.size());
-            successfulConceptCounts.add(successfulConcepts.size());
+            executor.awaitCompletion();
         }
 
-        log.trace("documentConceptRelations = {}", documentConceptRelations);
         log.debug("Succesful concept counts: {}", successfulConceptCounts);
+        log.debug("Batch size: {}", batchSizer);
+        if ( ! failedDocumentNames.isEmpty())
+            log.warn("{} documents had failed requests{}", failedDocumentNames.size(),
+                    failureLogFile != null ? ", see " + failureLogFile : "");
+        return failedDocumentNames;
+    }
 
-        return documentConceptRelations;
+    /**
+     * @return Last modified time in milliseconds by document name, for the documents whose time is known.
+     */
+    private Map<String, Long> getLastModified(Collection<Document> documents)
+    {
+        Map<String, Long> lastModifiedByDocument = new ConcurrentHashMap<>();
+        List<Document> documentsToFetch = new ArrayList<>();
+        CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+        // A stale mirror may not know about modifications by other processes
+        if (mirror != null)
+            mirror.ensureFresh();
+        for (Document document : documents) {
+            CiCorpusMirror.Entry entry = mirror != null ? mirror.getEntry(document.getName()) : null;
+            if (entry != null && entry.lastModifiedMillis != -1)
+                lastModifiedByDocument.put(document.getName(), entry.lastModifiedMillis);
+            else
+                documentsToFetch.add(document);
+        }
+        if ( ! documentsToFetch.isEmpty()) {
+            log.info("Getting last modified time of {} documents", documentsToFetch.size());
+            try (BoundedExecutor executor = new BoundedExecutor(concurrency, "ci-relater-state")) {
+                for (Document document : documentsToFetch)
+                    executor.submit(() -> {
+                        try {
+                            DocumentProcessingStatus state = CiRetryPolicy.DEFAULT.call(() -> limiter.call(
+                                    () -> conceptInsightsService.getDocumentProcessingState(document)),
+                                    e -> log.debug("Retrying processing state of document {}", document.getId())
+                            );
+                            if (state != null && state.getLastModified() != null)
+                                lastModifiedByDocument.put(document.getName(), state.getLastModified().getTime());
+                        } catch (Exception e) {
+                            log.warn("Could not get last modified time of document {}: {}", document.getId(),
+                                    e.toString());
+                        }
+                    });
+                executor.awaitCompletion();
+            }
+        }
+        return new HashMap<>(lastModifiedByDocument);
+    }
+
+    /**
+     * @return The concepts that exist in Watson, or that could not be checked.
+     */
+    private List<Concept> filterUnknownConcepts(List<Concept> concepts)
+    {
+        if (conceptValidator == null)
+            return concepts;
+        Map<String, List<Concept>> conceptsByGraphId = new LinkedHashMap<>();
+        for (Concept concept : concepts)
+            conceptsByGraphId.computeIfAbsent(CiUtil.getGraphFromConceptId(concept.getId()).getId(),
+                    graphId -> new ArrayList<>()).add(concept);
+        Set<String> unknownIds = new HashSet<>();
+        for (List<Concept> graphConcepts : conceptsByGraphId.values()) {
+            Graph graph = CiUtil.getGraphFromConceptId(graphConcepts.get(0).getId());
+            CiGraphQuerier.ConceptNameCheck check = conceptValidator.checkConceptNamesExist(graph,
+                    map(graphConcepts, concept -> CiUtil.getNameFromId(concept.getId())));
+            for (Concept concept : graphConcepts) {
+                String conceptName = CiUtil.getNameFromId(concept.getId());
+                if (check.notFound.contains(conceptName)) {
+                    log.warnOnce("Concept '{}' not known by Watson, skipping...", conceptName);
+                    unknownIds.add(concept.getId());
+                }
+            }
+            if ( ! check.errored.isEmpty())
+                log.warn("Could not check whether {} concepts are known by Watson, keeping them", check.errored.size());
+        }
+        List<Concept> filteredConcepts = filter(concepts, (Concept concept) -> ! unknownIds.contains(concept.getId()));
+        log.trace("Filtered concepts: {}", filteredConcepts);
+        return filteredConcepts;
+    }
+
+    private CiDocumentReadinessChecker newReadinessChecker()
+    {
+        return new CiDocumentReadinessChecker(conceptInsightsService)
+                .setConcurrency(concurrency)
+                .setConcurrencyLimiter(limiter);
+    }
+
+    /**
+     * Keeps the ready documents, moves the documents that are still processing to the deferred documents, and removes
+     * the others. Documents that failed to process are written to the failure log.
+     */
+    private static void sortByReadiness(Map<Document, CiDocumentReadinessChecker.Readiness> readinessByDocument,
+            Map<Document, List<Concept>> readyDocuments, Map<Document, List<Concept>> deferredDocuments,
+            @Nullable CiRelationFailureLog failureLog, Set<String> failedDocumentNames)
+    {
+        for (Map.Entry<Document, CiDocumentReadinessChecker.Readiness> entry : readinessByDocument.entrySet()) {
+            Document document = entry.getKey();
+            switch (entry.getValue()) {
+                case READY:
+                    break;
+                case PROCESSING:
+                    deferredDocuments.put(document, readyDocuments.remove(document));
+                    break;
+                case ERROR:
+                    log.warn("Document {} failed to process, skipping it", document.getName());
+                    writeFailedConcepts(failureLog, document, readyDocuments.remove(document));
+                    failedDocumentNames.add(document.getName());
+                    break;
+                case MISSING:
+                    log.warn("Document {} does not exist, skipping it", document.getName());
+                    readyDocuments.remove(document);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Gets the relations of a batch, retrying it with the retry policy. If the batch still fails with a bad request, it
+     * is split to find out which concepts are the culprits, instead of giving up on all of them. The batch sizer only
+     * hears about the batch, not about its splits. Concepts that were found to be bad before are not requested.
+     */
+    private void relate(Document document, List<Concept> concepts, DocumentProgress documentProgress)
+    {
+        List<Concept> batch = withoutBadConcepts(concepts, documentProgress);
+        if (batch.isEmpty())
+            return;
+        try {
+            // Only the successful request is timed, not waiting for the limiter or retries
+            AtomicLong requestNanos = new AtomicLong();
+            Scores scores = retryPolicy.call(
+                    () -> limiter.call(() -> {
+                        long startNanos = System.nanoTime();
+                        Scores batchScores = conceptInsightsService.getDocumentRelationScores(document, batch);
+                        requestNanos.set(System.nanoTime() - startNanos);
+                        return batchScores;
+                    }),
+                    e -> log.debug("Retrying relations for document {}, {} concepts", document.getName(), batch.size())
+            );
+            batchSizer.onSuccess(batch.size(), requestNanos.get());
+            addScores(scores, batch, documentProgress);
+        } catch (Exception e) {
+            batchSizer.onFailure(batch.size());
+            onBatchFailure(document, batch, documentProgress, e);
+        }
+    }
+
+    /**
+     * Splits a failed batch in halves and gets their relations, without retries, until the concepts that fail are
+     * found.
+     */
+    private void bisect(Document document, List<Concept> batch, DocumentProgress documentProgress)
+    {
+        int half = batch.size() / 2;
+        for (List<Concept> concepts : Arrays.asList(batch.subList(0, half), batch.subList(half, batch.size()))) {
+            // Another thread may have found a bad concept in the meantime
+            List<Concept> subBatch = withoutBadConcepts(concepts, documentProgress);
+            if (subBatch.isEmpty())
+                continue;
+            try {
+                Scores scores = limiter.call(() -> conceptInsightsService.getDocumentRelationScores(document, subBatch));
+                addScores(scores, subBatch, documentProgress);
+            } catch (Exception e) {
+                onBatchFailure(document, subBatch, documentProgress, e);
+            }
+        }
+    }
+
+    /**
+     * Splits the batch if it was a bad request, and records a concept that failed on its own as bad. If the document
+     * was not found, checks whether it still exists, so that a deleted document is reported once instead of for every
+     * batch.
+     */
+    private void onBatchFailure(Document document, List<Concept> batch, DocumentProgress documentProgress, Exception e)
+    {
+        if (isConceptError(e)) {
+            if (batch.size() > 1) {
+                log.debug("Could not get relations for document {}, {} concepts, splitting batch: {}",
+                        document.getName(), batch.size(), e.toString());
+                bisect(document, batch, documentProgress);
+                return;
+            }
+            Concept concept = batch.get(0);
+            if (badConceptIds.add(concept.getId()))
+                log.warn("Concept {} makes requests fail, leaving it out of further requests: {}", concept.getName(),
+                        e.toString());
+            documentProgress.failedConcepts.add(concept);
+            return;
+        }
+        if (isNotFoundError(e) && (documentProgress.missing.get() || ! documentExists(document))) {
+            if (documentProgress.missing.compareAndSet(false, true))
+                log.error("Document {} no longer exists, can't get its relations", document.getName());
+            documentProgress.failedConcepts.addAll(batch);
+            return;
+        }
+        log.error("Could not get relations for document {}, concepts {}", document.getName(),
+                map(batch, Concept::getName), e);
+        documentProgress.failedConcepts.addAll(batch);
+    }
+
+    /**
+     * @return The concepts that are not known to be bad. The bad ones are recorded as failed.
+     */
+    private List<Concept> withoutBadConcepts(List<Concept> concepts, DocumentProgress documentProgress)
+    {
+        if (badConceptIds.isEmpty())
+            return concepts;
+        List<Concept> goodConcepts = new ArrayList<>();
+        for (Concept concept : concepts) {
+            if (badConceptIds.contains(concept.getId()))
+                documentProgress.failedConcepts.add(concept);
+            else
+                goodConcepts.add(concept);
+        }
+        return goodConcepts;
+    }
+
+    /**
+     * @return Whether the processing state of the document can be found. If that fails for another reason, the
+     *     document is assumed to exist.
+     */
+    private boolean documentExists(Document document)
+    {
+        try {
+            limiter.call(() -> conceptInsightsService.getDocumentProcessingState(document));
+            return true;
+        } catch (Exception e) {
+            return ! CiCorpusHelper.isNotFound(e);
+        }
+    }
+
+    private static void addScores(Scores scores, List<Concept> batch, DocumentProgress documentProgress)
+    {
+        for (Score score : scores.getScores())
+            documentProgress.scores.put(CiUtil.getNameFromId(score.getConcept()), score.getScore());
+        documentProgress.successfulConcepts.addAll(batch);
+    }
+
+    /**
+     * @return Whether the request was rejected as bad, like for an invalid concept, so that splitting the batch can
+     *     isolate it. Overload, timeouts, missing documents and other errors are not the fault of any concept.
+     */
+    private static boolean isConceptError(Throwable throwable)
+    {
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            if (t instanceof BadRequestException && ! CiCorpusHelper.isNotFound((Exception) t))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isNotFoundError(Throwable throwable)
+    {
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            if (t instanceof Exception && CiCorpusHelper.isNotFound((Exception) t))
+                return true;
+        }
+        return false;
+    }
+
+    private static void writeFailedConcepts(@Nullable CiRelationFailureLog failureLog, DocumentProgress documentProgress)
+    {
+        writeFailedConcepts(failureLog, documentProgress.document, documentProgress.failedConcepts);
+    }
+
+    private static void writeFailedConcepts(@Nullable CiRelationFailureLog failureLog, Document document,
+            List<Concept> failedConcepts)
+    {
+        if (failureLog == null)
+            return;
+        try {
+            failureLog.record(document.getName(), failedConcepts);
+        } catch (IOException e) {
+            log.error("Could not write failed concepts to file", e);
+        }
+    }
+
+    private static void emit(CiRelationSink sink, DocumentProgress documentProgress)
+    {
+        String documentName = documentProgress.document.getName();
+        try {
+            synchronized (sink) {
+                sink.accept(documentName, documentProgress.scores);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Could not write relations of document {}", documentName, e);
+        }
+    }
+
+    private static void writeCheckpoint(@Nullable CiRelationCheckpoint checkpoint, DocumentProgress documentProgress)
+    {
+        if (checkpoint == null)
+            return;
+        String documentName = documentProgress.document.getName();
+        try {
+            checkpoint.record(documentName, documentProgress.scores);
+        } catch (IOException e) {
+            log.error("Could not write relations of document {} to checkpoint", documentName, e);
+        }
+    }
+
+    /**
+     * Tracks the batches of one document, which may complete on different threads.
+     */
+    private static class DocumentProgress
+    {
+        final Document document;
+        final List<Concept> successfulConcepts = Collections.synchronizedList(new ArrayList<>());
+        final List<Concept> failedConcepts = Collections.synchronizedList(new ArrayList<>());
+        /** Scores by concept name */
+        final Map<String, Double> scores = new ConcurrentHashMap<>();
+        /** Whether the document turned out to be deleted. */
+        final AtomicBoolean missing = new AtomicBoolean();
+        private final AtomicInteger remainingConcepts;
+
+        DocumentProgress(Document document, int numConcepts)
+        {
+            this.document = document;
+            this.remainingConcepts = new AtomicInteger(numConcepts);
+        }
+
+        /**
+         * @return Whether these were the last concepts of the document.
+         */
+        boolean conceptsDone(int numConcepts)
+        {
+            return remainingConcepts.addAndGet(-numConcepts) == 0;
+        }
+    }
+
+    /**
+     * Logs each completed document, and overall progress with the expected remaining time about every 10 seconds.
+     */
+    private static class ProgressLog
+    {
+        private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+        private final int total;
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger numDone = new AtomicInteger();
+        private final AtomicLong lastLogNanos = new AtomicLong(System.nanoTime());
+
+        ProgressLog(int total)
+        {
+            this.total = total;
+        }
+
+        void documentDone(DocumentProgress documentProgress)
+        {
+            int done = numDone.incrementAndGet();
+            log.debug("Got concept relations for doc {}/{}: '{}' ({}), {} concepts failed", done, total,
+                    documentProgress.document.getName(), documentProgress.document.getLabel(),
+                    documentProgress.failedConcepts.size());
+            long now = System.nanoTime();
+            long last = lastLogNanos.get();
+            if ((now - last >= INTERVAL_NANOS || done == total) && lastLogNanos.compareAndSet(last, now)) {
+                long elapsedNanos = now - startNanos;
+                log.info("Related {}/{} documents, {} docs/s, remaining time: {}", done, total,
+                        String.format("%.1f", done / (elapsedNanos / 1e9)),
+                        nanosToString((long) (elapsedNanos / (double) done * (total - done))));
+            }
+        }
     }
 }
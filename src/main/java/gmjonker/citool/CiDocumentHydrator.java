@@ -0,0 +1,208 @@
+package gmjonker.citool;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights;
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpus;
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Document;
+import gmjonker.util.LambdaLogger;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Fetches the full content of many documents with bounded concurrency.
+ *
+ * <p>Documents are returned in the order in which they complete, not the order in which they were requested, so that
+ * one slow document doesn't hold up the rest. At most a few times the concurrency documents are held in memory at once,
+ * unless the caller collects them. Fetched documents can be kept in a local cache, so that repeated lookups don't go
+ * to Watson again.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiDocumentHydrator
+{
+    private final ConceptInsights conceptInsightsService;
+    private final Corpus corpus;
+    private int concurrency = 4;
+    private CiConcurrencyLimiter limiter = CiConcurrencyLimiter.getDefault();
+    private CiRetryPolicy retryPolicy = CiRetryPolicy.DEFAULT;
+    @Nullable private Cache<String, Document> cache = null;
+
+    private static final LambdaLogger log = new LambdaLogger(CiDocumentHydrator.class);
+
+    public CiDocumentHydrator(ConceptInsights conceptInsightsService, Corpus corpus)
+    {
+        this.conceptInsightsService = conceptInsightsService;
+        this.corpus = corpus;
+    }
+
+    /**
+     * Sets the number of documents that are fetched concurrently. Default is 4.
+     */
+    public CiDocumentHydrator setConcurrency(int concurrency)
+    {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1, got " + concurrency);
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public CiDocumentHydrator setConcurrencyLimiter(CiConcurrencyLimiter limiter)
+    {
+        this.limiter = limiter;
+        return this;
+    }
+
+    public CiDocumentHydrator setRetryPolicy(CiRetryPolicy retryPolicy)
+    {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Keeps fetched documents in memory, keyed by document id.
+     * @param maximumSize Maximum number of documents in the cache
+     * @param expireAfterWriteMillis Time after which a cached document is fetched again
+     */
+    public CiDocumentHydrator enableCache(long maximumSize, long expireAfterWriteMillis)
+    {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .build();
+        return this;
+    }
+
+    /**
+     * Fetches the documents with the given ids. Iterate over the result to get the documents as they complete; fetching
+     * starts on the first call to {@code hasNext()}. Documents that could not be fetched are logged and left out; their
+     * ids are available from {@link Hydration#getFailedIds()} once iteration is done.
+     */
+    public Hydration hydrate(Collection<String> documentIds)
+    {
+        return new Hydration(documentIds.iterator());
+    }
+
+    /**
+     * Like {@link #hydrate(Collection)}, for documents of which only the name is known, like the ones returned by
+     * {@link CiCorpusHelper#getDocuments}.
+     */
+    public Hydration hydrateDocuments(Collection<Document> stubs)
+    {
+        return hydrate(stubs.stream().map(Document::getId).collect(Collectors.toList()));
+    }
+
+    /**
+     * Fetches all documents and waits for them.
+     * @return Fetched documents by id. Documents that could not be fetched are missing.
+     */
+    public Map<String, Document> hydrateAll(Collection<String> documentIds)
+    {
+        Map<String, Document> documents = new HashMap<>();
+        try (Hydration hydration = hydrate(documentIds)) {
+            hydration.forEachRemaining(document -> documents.put(document.getId(), document));
+            if ( ! hydration.getFailedIds().isEmpty())
+                log.warn("Could not fetch {} of {} documents", hydration.getFailedIds().size(), documentIds.size());
+        }
+        return documents;
+    }
+
+    @Nullable
+    private Document fetch(String documentId)
+    {
+        if (cache != null) {
+            Document cached = cache.getIfPresent(documentId);
+            if (cached != null)
+                return cached;
+        }
+        Document stub = CiUtil.getDocumentFromId(documentId, corpus);
+        try {
+            Document document = retryPolicy.call(() -> limiter.call(() -> conceptInsightsService.getDocument(stub)),
+                    e -> log.debug("Retrying fetch of document {}", documentId));
+            if (cache != null)
+                cache.put(documentId, document);
+            return document;
+        } catch (Exception e) {
+            log.error("Error while fetching document {}", documentId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Documents being fetched, in order of completion. The worker threads are started when iteration starts, and stopped
+     * when it ends. Closing stops fetching documents that were not requested yet.
+     */
+    public class Hydration extends AbstractIterator<Document> implements AutoCloseable
+    {
+        private final Iterator<String> documentIds;
+        @Nullable private ExecutorService executorService = null;
+        @Nullable private CompletionService<Map.Entry<String, Document>> completionService = null;
+        private boolean closed = false;
+        private final int maxInFlight = concurrency * 2;
+        private int inFlight = 0;
+        private final List<String> failedIds = new ArrayList<>();
+
+        Hydration(Iterator<String> documentIds)
+        {
+            this.documentIds = documentIds;
+        }
+
+        /**
+         * @return Ids of documents that could not be fetched so far.
+         */
+        public List<String> getFailedIds()
+        {
+            return Collections.unmodifiableList(failedIds);
+        }
+
+        @Override
+        protected Document computeNext()
+        {
+            if (closed)
+                return endOfData();
+            if (executorService == null) {
+                executorService = Executors.newFixedThreadPool(concurrency,
+                        new ThreadFactoryBuilder().setNameFormat("ci-hydrator-%d").setDaemon(true).build());
+                completionService = new ExecutorCompletionService<>(executorService);
+            }
+            while (true) {
+                while (inFlight < maxInFlight && documentIds.hasNext()) {
+                    String documentId = documentIds.next();
+                    completionService.submit(() -> new AbstractMap.SimpleImmutableEntry<>(documentId, fetch(documentId)));
+                    inFlight++;
+                }
+                if (inFlight == 0) {
+                    close();
+                    return endOfData();
+                }
+                Map.Entry<String, Document> result;
+                try {
+                    result = completionService.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new IllegalStateException("Interrupted while fetching documents", e);
+                } catch (ExecutionException e) {
+                    // fetch() catches everything, so this doesn't happen
+                    throw new IllegalStateException(e.getCause());
+                }
+                inFlight--;
+                if (result.getValue() != null)
+                    return result.getValue();
+                failedIds.add(result.getKey());
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+            if (executorService != null)
+                executorService.shutdownNow();
+        }
+    }
+}
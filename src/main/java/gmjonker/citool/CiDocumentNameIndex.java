@@ -0,0 +1,154 @@
+package gmjonker.citool;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory trigram index over document names, for fast partial name lookups.
+ *
+ * <p>Names and queries are normalized the same way: decomposed, stripped of accents and lower cased. A query matches a
+ * name if the normalized query is a substring of the normalized name. Queries of three or more characters only look
+ * at names that contain all trigrams of the query; shorter queries scan all names.
+ *
+ * <p>The index is updated incrementally with {@link #add(String)} and {@link #remove(String)}, and is safe for use by
+ * multiple threads.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiDocumentNameIndex
+{
+    private static final int GRAM_LENGTH = 3;
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+    private final Map<String, String> normalizedNames = new HashMap<>();
+    private final Map<String, Set<String>> namesByTrigram = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public void add(String name)
+    {
+        String normalizedName = normalize(name);
+        lock.writeLock().lock();
+        try {
+            if (normalizedNames.put(name, normalizedName) != null)
+                return;
+            for (String trigram : trigrams(normalizedName))
+                namesByTrigram.computeIfAbsent(trigram, t -> new HashSet<>()).add(name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addAll(Collection<String> names)
+    {
+        for (String name : names)
+            add(name);
+    }
+
+    public void remove(String name)
+    {
+        lock.writeLock().lock();
+        try {
+            String normalizedName = normalizedNames.remove(name);
+            if (normalizedName == null)
+                return;
+            for (String trigram : trigrams(normalizedName)) {
+                Set<String> names = namesByTrigram.get(trigram);
+                if (names == null)
+                    continue;
+                names.remove(name);
+                if (names.isEmpty())
+                    namesByTrigram.remove(trigram);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear()
+    {
+        lock.writeLock().lock();
+        try {
+            normalizedNames.clear();
+            namesByTrigram.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size()
+    {
+        lock.readLock().lock();
+        try {
+            return normalizedNames.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Names that contain the query, ignoring case and accents, in no particular order.
+     */
+    public List<String> find(String query)
+    {
+        String normalizedQuery = normalize(query);
+        lock.readLock().lock();
+        try {
+            Collection<String> candidates = normalizedQuery.length() < GRAM_LENGTH
+                    ? normalizedNames.keySet()
+                    : getCandidates(normalizedQuery);
+            List<String> result = new ArrayList<>();
+            for (String name : candidates) {
+                if (normalizedNames.get(name).contains(normalizedQuery))
+                    result.add(name);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Whether the name contains the query, normalized the way the index normalizes them. Used by lookups that
+     *     don't go through an index, so that they match the same names.
+     */
+    public static boolean containsNormalized(String name, String query)
+    {
+        return normalize(name).contains(normalize(query));
+    }
+
+    static String normalize(String string)
+    {
+        String decomposed = Normalizer.normalize(string, Normalizer.Form.NFD);
+        return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return Names that contain all trigrams of the query. Caller must hold the read lock.
+     */
+    private Collection<String> getCandidates(String normalizedQuery)
+    {
+        // Intersect starting with the smallest posting list, so that the intersection stays small
+        List<Set<String>> postingLists = new ArrayList<>();
+        for (String trigram : trigrams(normalizedQuery)) {
+            Set<String> names = namesByTrigram.get(trigram);
+            if (names == null)
+                return Collections.emptyList();
+            postingLists.add(names);
+        }
+        postingLists.sort(Comparator.comparingInt(Set::size));
+        Set<String> candidates = new HashSet<>(postingLists.get(0));
+        for (int i = 1; i < postingLists.size() && ! candidates.isEmpty(); i++)
+            candidates.retainAll(postingLists.get(i));
+        return candidates;
+    }
+
+    private static Set<String> trigrams(String normalizedString)
+    {
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= normalizedString.length(); i++)
+            trigrams.add(normalizedString.substring(i, i + GRAM_LENGTH));
+        return trigrams;
+    }
+}
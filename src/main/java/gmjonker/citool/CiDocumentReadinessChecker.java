@@ -0,0 +1,111 @@
+package gmjonker.citool;
+
+import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights;
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Document;
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.DocumentProcessingStatus;
+import gmjonker.util.LambdaLogger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks whether Watson has finished processing documents, so that relation requests are only sent for documents that
+ * can answer them. A document that is still processing or that failed to process makes every relation request fail,
+ * each only after several retries.
+ *
+ * <p>The processing state of a document is a small response, so checking all documents up front costs much less than
+ * the failing relation requests it prevents.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiDocumentReadinessChecker
+{
+    public enum Readiness
+    {
+        READY,
+        PROCESSING,
+        ERROR,
+        MISSING
+    }
+
+    private final ConceptInsights conceptInsightsService;
+    private CiConcurrencyLimiter limiter = CiConcurrencyLimiter.getDefault();
+    private int concurrency = 4;
+
+    private static final LambdaLogger log = new LambdaLogger(CiDocumentReadinessChecker.class);
+
+    public CiDocumentReadinessChecker(ConceptInsights conceptInsightsService)
+    {
+        this.conceptInsightsService = conceptInsightsService;
+    }
+
+    /**
+     * Sets the number of states that are requested concurrently. Default is 4.
+     */
+    public CiDocumentReadinessChecker setConcurrency(int concurrency)
+    {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1, got " + concurrency);
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public CiDocumentReadinessChecker setConcurrencyLimiter(CiConcurrencyLimiter limiter)
+    {
+        this.limiter = limiter;
+        return this;
+    }
+
+    /**
+     * Gets the processing state of the documents concurrently. A document whose state can't be determined counts as
+     * ready, so that it is tried anyway.
+     * @return Readiness by document, in the order of the given documents.
+     */
+    public Map<Document, Readiness> check(Collection<Document> documents)
+    {
+        Map<Document, Readiness> readinessByDocument = new ConcurrentHashMap<>();
+        try (BoundedExecutor executor = new BoundedExecutor(concurrency, "ci-readiness-checker")) {
+            for (Document document : documents)
+                executor.submit(() -> readinessByDocument.put(document, check(document)));
+            executor.awaitCompletion();
+        }
+
+        Map<Document, Readiness> orderedReadiness = new LinkedHashMap<>();
+        EnumMap<Readiness, Integer> counts = new EnumMap<>(Readiness.class);
+        for (Document document : documents) {
+            Readiness readiness = readinessByDocument.get(document);
+            orderedReadiness.put(document, readiness);
+            counts.merge(readiness, 1, Integer::sum);
+        }
+        log.debug("Readiness of {} documents: {}", documents.size(), counts);
+        return orderedReadiness;
+    }
+
+    public Readiness check(Document document)
+    {
+        DocumentProcessingStatus state;
+        try {
+            state = CiRetryPolicy.DEFAULT.call(() -> limiter.call(
+                    () -> conceptInsightsService.getDocumentProcessingState(document)),
+                    e -> log.debug("Retrying processing state of document {}", document.getId())
+            );
+        } catch (Exception e) {
+            if (CiCorpusHelper.isNotFound(e))
+                return Readiness.MISSING;
+            log.warn("Could not get processing state of document {}: {}", document.getId(), e.toString());
+            return Readiness.READY;
+        }
+        return toReadiness(document, state);
+    }
+
+    private static Readiness toReadiness(Document document, DocumentProcessingStatus state)
+    {
+        String status = state != null ? state.getStatus() : null;
+        if ("processing".equals(status))
+            return Readiness.PROCESSING;
+        if ("error".equals(status)) {
+            log.debug("Document {} failed to process: {}", document.getId(), state.getError());
+            return Readiness.ERROR;
+        }
+        return Readiness.READY;
+    }
+}
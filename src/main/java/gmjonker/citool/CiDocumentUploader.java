@@ -1,17 +1,19 @@
 package gmjonker.citool;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights;
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpus;
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.Document;
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.Part;
+import gmjonker.citool.temp.UploadResult;
 import gmjonker.util.LambdaLogger;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
-
-import static gmjonker.util.CollectionsUtil.map;
-import static gmjonker.util.FormattingUtil.nanosToString;
+import java.util.stream.Stream;
 
 /**
  * Uploads documents to Concept Insights.
@@ -30,7 +32,14 @@ public class CiDocumentUploader
         return new CiDocumentUploader(conceptInsightsService, corpus, false, ! noDelete, true, interactive);
     }
 
-    public int numUpdatedDocs = 0;
+    private static final int UNKNOWN_SIZE = CiProcessingStateSampler.UNKNOWN_TOTAL;
+
+    /**
+     * @deprecated Use {@link #getNumUpdatedDocs()}. Uploads and updates are done concurrently, so this field is only
+     *     written while holding this uploader's lock.
+     */
+    @Deprecated
+    public volatile int numUpdatedDocs = 0;
 
     private final ConceptInsights conceptInsightsService;
     private final Corpus corpus;
@@ -38,6 +47,13 @@ public class CiDocumentUploader
     private final boolean deleteOthers;
     private final boolean skipUploadEmptyDocuments;
     private final boolean interactive;
+    private int concurrency = 1;
+    @Nullable private CiUploadManifest manifest = null;
+    private CiConcurrencyLimiter limiter = CiConcurrencyLimiter.getDefault();
+    private CiRetryPolicy retryPolicy = CiRetryPolicy.DEFAULT;
+    private long monitoringIntervalMillis = 30000;
+    @Nullable private CiUploadJournal journal = null;
+    private volatile UploadResult lastUploadResult = new UploadResult();
 
     private static final LambdaLogger log = new LambdaLogger(CiDocumentUploader.class);
 
@@ -53,109 +69,259 @@ public class CiDocumentUploader
     }
 
     /**
-     * @return The documents that were added.
+     * Sets the number of documents that are sent to Watson concurrently. Default is 1, which uploads documents one by
+     * one in the order given.
+     */
+    public CiDocumentUploader setConcurrency(int concurrency)
+    {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1, got " + concurrency);
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Sets the limiter that adapts the number of concurrent calls to Watson. Default is
+     * {@link CiConcurrencyLimiter#getDefault()}. The number of calls in flight never exceeds the concurrency set with
+     * {@link #setConcurrency(int)}.
+     */
+    public CiDocumentUploader setConcurrencyLimiter(CiConcurrencyLimiter limiter)
+    {
+        this.limiter = limiter;
+        return this;
+    }
+
+    /**
+     * Sets how failed calls to Watson are retried. Default is {@link CiRetryPolicy#DEFAULT}.
+     */
+    public CiDocumentUploader setRetryPolicy(CiRetryPolicy retryPolicy)
+    {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Makes uploads resumable: documents that were added or deleted are recorded in the journal, and documents that are
+     * already in the journal are skipped. The journal is deleted when an upload completes without failures.
+     */
+    public CiDocumentUploader setJournal(@Nullable CiUploadJournal journal)
+    {
+        this.journal = journal;
+        return this;
+    }
+
+    /**
+     * Sets how often the processing state of the corpus and the upload progress are logged. This happens on a
+     * background thread, so uploading never waits for it. Must be positive, default is every 30 seconds.
+     */
+    public CiDocumentUploader setMonitoringInterval(long monitoringIntervalMillis)
+    {
+        Preconditions.checkArgument(monitoringIntervalMillis > 0,
+                "Monitoring interval must be positive, got %s", monitoringIntervalMillis);
+        this.monitoringIntervalMillis = monitoringIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Turns on sync mode: documents that are in CI and whose content hash matches the one in the manifest are not
+     * uploaded again. The manifest is updated and saved after each upload.
+     */
+    public CiDocumentUploader setManifest(@Nullable CiUploadManifest manifest)
+    {
+        this.manifest = manifest;
+        return this;
+    }
+
+    /**
+     * @return Number of documents that were added or updated by this uploader so far.
+     */
+    public int getNumUpdatedDocs()
+    {
+        return numUpdatedDocs;
+    }
+
+    private synchronized void incrementNumUpdatedDocs()
+    {
+        numUpdatedDocs++;
+    }
+
+    /**
+     * @return Names of the documents that were added, deleted or failed during the last upload or update.
+     */
+    public UploadResult getLastUploadResult()
+    {
+        return lastUploadResult;
+    }
+
+    /**
+     * @return All given documents as Watson documents, in the order given, including the ones that were skipped. See
+     *     {@link #getLastUploadResult()} for which documents were added. The returned documents only carry name, label
+     *     and user fields, not the body, so that uploading a large list doesn't keep all bodies in memory.
      */
     public List<Document> uploadDocuments(List<CiDocument> ciDocuments)
     {
-        log.info("CI document uploader is about to upload {} documents to corpus {}", ciDocuments.size(), corpus.getId());
+        Set<String> namesToKeep = new HashSet<>();
+        for (CiDocument ciDocument : ciDocuments)
+            namesToKeep.add(ciDocument.name);
+        upload(ciDocuments.iterator(), ciDocuments.size(), namesToKeep);
+        List<Document> documents = new ArrayList<>();
+        for (CiDocument ciDocument : ciDocuments)
+            documents.add(ciDocumentToWatsonMetaData(ciDocument));
+        return documents;
+    }
+
+    /**
+     * Uploads documents as they are read from the iterator. Documents are converted one at a time, and only a bounded
+     * number of them is held in memory, so the input can be larger than the heap. If other documents are to be deleted,
+     * this starts when the iterator is exhausted, because only then it is known which documents to keep.
+     * @return Names of the documents that were added, deleted, skipped or failed.
+     */
+    public UploadResult uploadDocuments(Iterator<CiDocument> ciDocuments)
+    {
+        return upload(ciDocuments, UNKNOWN_SIZE, null);
+    }
+
+    /**
+     * Like {@link #uploadDocuments(Iterator)}.
+     */
+    public UploadResult uploadDocuments(Stream<CiDocument> ciDocuments)
+    {
+        return uploadDocuments(ciDocuments.iterator());
+    }
+
+    /**
+     * @param expectedSize Number of documents, or UNKNOWN_SIZE
+     * @param namesToKeep Names of all documents that will be uploaded, if known beforehand. In that case other documents
+     *     are deleted alongside the uploads, otherwise once all documents have been read.
+     */
+    private UploadResult upload(Iterator<CiDocument> ciDocuments, int expectedSize, @Nullable Set<String> namesToKeep)
+    {
+        log.info("CI document uploader is about to upload {} documents to corpus {}",
+                expectedSize == UNKNOWN_SIZE ? "a stream of" : expectedSize, corpus.getId());
         log.debug("Overwrite existing documents set to: {}", overwriteExisting);
         log.debug("Delete other documents set to: {}", deleteOthers);
+        log.debug("Concurrency set to: {}", concurrency);
+        log.debug("Sync mode set to: {}", manifest != null);
 
         // Get names of documents currently in CI
         Set<String> allDocumentNames = CiCorpusHelper.getAllDocumentNames(conceptInsightsService, corpus);
         log.info("There are currently {} documents in CI", allDocumentNames.size());
         log.trace("allDocumentNames = {}", allDocumentNames);
 
-        // Convert ciDocuments to documents that can be added
-        List<Document> documentsToAdd = ciDocumentsToWatsonDocuments(ciDocuments);
-
-        // Determine which documents need to be deleted
-        List<Document> documentsToDelete = new ArrayList<>();
-        if (deleteOthers) {
-            Set<String> namesToDelete = new HashSet<>();
-            namesToDelete.addAll(allDocumentNames);
-            namesToDelete.removeAll(map(ciDocuments, doc -> doc.name));
-            log.debug("Document ids to delete: {}", namesToDelete);
-
-            if ( ! namesToDelete.isEmpty() && interactive) {
-                System.out.println("Continue? [Yn]");
-                Scanner scanner = new Scanner(System.in);
-                String answer = scanner.nextLine().toLowerCase();
-                if (!Objects.equals(answer, "y") && ! Objects.equals(answer, "")) {
-                    System.out.println("Exiting.");
-                    System.exit(-1);
-                }
+        UploadResult uploadResult = new UploadResult();
+        lastUploadResult = uploadResult;
+        int numRead = 0;
+        try (BoundedExecutor executor = new BoundedExecutor(concurrency, "ci-uploader");
+                CiProcessingStateSampler sampler = startSampler(uploadResult, expectedSize)) {
+            // Documents no longer in database are deleted from CI in the same pipeline as the additions. The two sets
+            // don't overlap, so deletes and adds can be interleaved, and share the same concurrency limit.
+            List<String> namesToDelete = deleteOthers && namesToKeep != null
+                    ? getNamesToDelete(namesToKeep, allDocumentNames)
+                    : Collections.emptyList();
+            if ( ! confirmDeletes(namesToDelete)) {
+                // Nothing was uploaded yet
+                System.out.println("Exiting.");
+                System.exit(-1);
             }
+            int numDeletesSubmitted = 0;
 
-            for (String documentName : namesToDelete)
-                documentsToDelete.add(new Document(corpus, documentName));
-        }
-
-        // Delete documents no longer in database from CI
-        log.info("Deleting {} documents from CI...", documentsToDelete.size());
-        for (int i = 0; i < documentsToDelete.size(); i++)
-        {
-            Document documentToDelete = documentsToDelete.get(i);
-            if ( ! allDocumentNames.contains(documentToDelete.getName())) {
-                log.debug("Document not in CI, skipping: {}", documentToDelete.getName());
-                log.trace(documentToDelete.getLabel());
-                continue;
-            }
-            log.trace("Deleting document: " + documentToDelete);
-            try {
-                Stopwatch stopwatch = Stopwatch.createStarted();
-                conceptInsightsService.deleteDocument(documentToDelete);
-                stopwatch.stop();
-                log.debug("Deleted document {}/{}: {} - {} in {}", i, documentsToDelete.size(), documentToDelete.getName(),
-                        documentToDelete.getLabel(), stopwatch);
-            } catch (Exception e) {
-                log.error("Error while deleting document {}", documentToDelete.getLabel(), e);
-            }
-        }
-
-        // Add documents to CI
-        log.info("Adding {} documents to CI...", documentsToAdd.size());
-        Stopwatch uploadStopwatch = Stopwatch.createStarted();
-        for (int i = 0; i < documentsToAdd.size(); i++)
-        {
-            Document addedDocument = documentsToAdd.get(i);
-            if (!overwriteExisting && allDocumentNames.contains(addedDocument.getName())) {
-                log.debug("Document already in CI, skipping: {}", addedDocument.getName());
-                log.trace(addedDocument.getLabel());
-                continue;
-            } else {
-                long size = addedDocument.getParts().stream().mapToLong(part -> part.getData().length()).sum();
-                if (skipUploadEmptyDocuments && size == 0) {
-                    log.debug("Document '{}' empty, skipping.", addedDocument.getName());
+            // Add documents to CI
+            log.info("Adding documents to CI and deleting {} documents from CI...", namesToDelete.size());
+            Set<String> namesSeen = new HashSet<>();
+            while (ciDocuments.hasNext())
+            {
+                if (numDeletesSubmitted < namesToDelete.size()) {
+                    submitDelete(namesToDelete.get(numDeletesSubmitted), numDeletesSubmitted, namesToDelete.size(), executor,
+                            uploadResult);
+                    numDeletesSubmitted++;
+                }
+                CiDocument ciDocument = ciDocuments.next();
+                int index = numRead++;
+                if (deleteOthers && namesToKeep == null)
+                    namesSeen.add(ciDocument.name);
+                if (!overwriteExisting && allDocumentNames.contains(ciDocument.name)) {
+                    log.debug("Document already in CI, skipping: {}", ciDocument.name);
+                    log.trace(ciDocument.label);
+                    uploadResult.skipped.add(ciDocument.name);
                     continue;
                 }
-                log.trace("Adding document: " + addedDocument);
+                // Bodies that can only be checked by reading them are checked in the worker
+                boolean knownEmpty;
                 try {
-                    Stopwatch stopwatch = Stopwatch.createStarted();
-                    conceptInsightsService.createDocument(addedDocument);
-                    stopwatch.stop();
-                    log.debug("Added document {}/{}: {} - {} ({} kb) in {}", i, documentsToAdd.size(), addedDocument.getName(),
-                            addedDocument.getLabel(), size / 1000, stopwatch);
-                    numUpdatedDocs++;
-                } catch (Exception e) {
-                    log.error("Error while uploading document {}", addedDocument.getLabel(), e);
+                    knownEmpty = skipUploadEmptyDocuments && ciDocument.isBodyKnownEmpty();
+                } catch (UncheckedIOException e) {
+                    log.error("Error while checking document {}", ciDocument.name, e);
+                    uploadResult.failed.add(ciDocument.name);
+                    continue;
+                }
+                if (knownEmpty) {
+                    log.debug("Document '{}' empty, skipping.", ciDocument.name);
+                    uploadResult.skipped.add(ciDocument.name);
+                    continue;
+                }
+                // In sync mode, the worker needs the body to check the manifest
+                if (manifest == null && journal != null && journal.isAdded(ciDocument.name)) {
+                    log.trace("Document already added in previous run, skipping: {}", ciDocument.name);
+                    uploadResult.skipped.add(ciDocument.name);
+                    continue;
                 }
+                // The body is read in the worker, so that only documents in flight are held in memory
+                boolean inCi = allDocumentNames.contains(ciDocument.name);
+                executor.submit(() -> addDocument(ciDocument, inCi, index, expectedSize, uploadResult));
             }
 
-            logStats(documentsToAdd, uploadStopwatch);
+            // When streaming, we only know which documents to delete now. Adds may still be in flight, so they are
+            // finished before asking, and declining only skips the deletes.
+            if (deleteOthers && namesToKeep == null) {
+                namesToDelete = getNamesToDelete(namesSeen, allDocumentNames);
+                if (interactive && ! namesToDelete.isEmpty())
+                    executor.awaitCompletion();
+                if (confirmDeletes(namesToDelete)) {
+                    log.info("Deleting {} documents from CI...", namesToDelete.size());
+                } else {
+                    log.info("Not deleting {} documents from CI", namesToDelete.size());
+                    namesToDelete = Collections.emptyList();
+                }
+            }
+            for (; numDeletesSubmitted < namesToDelete.size(); numDeletesSubmitted++)
+                submitDelete(namesToDelete.get(numDeletesSubmitted), numDeletesSubmitted, namesToDelete.size(), executor,
+                        uploadResult);
+            executor.awaitCompletion();
         }
+        saveManifest();
+        finishJournal(uploadResult);
+        CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+        if (mirror != null)
+            mirror.saveSnapshotIfDirty();
+        log.debug("Concurrency: {}", limiter);
 
         log.trace("Corpus stats: {}", () -> conceptInsightsService.getCorpusStats(corpus));
 
-        log.info("{} of {} documents were uploaded, and are now being processed by Watson...", numUpdatedDocs,
-                ciDocuments.size());
-        return documentsToAdd;
+        log.info("{} documents were skipped", uploadResult.skipped.size());
+        log.info("{} of {} documents were uploaded, and are now being processed by Watson...", uploadResult.succeeded.size(),
+                numRead);
+        if ( ! uploadResult.retried.isEmpty())
+            log.info("{} documents needed more than one attempt", uploadResult.retried.size());
+        if ( ! uploadResult.failed.isEmpty())
+            log.warn("{} documents failed: {}", uploadResult.failed.size(), uploadResult.failed);
+        return uploadResult;
     }
 
     /**
      * Only updates metadata (label and user field) of existing documents.
      */
     public List<Document> updateMetaData(List<CiDocument> ciDocuments)
+    {
+        return updateMetaData(ciDocuments, false);
+    }
+
+    /**
+     * Only updates metadata (label and user field) of existing documents.
+     * @param onlyChanged If true, the current metadata of each document is taken from the registered
+     *     {@link CiCorpusMirror} or fetched from CI first, and the document is only updated if its label or user
+     *     fields differ. Unchanged documents end up in {@link UploadResult#skipped}.
+     */
+    public List<Document> updateMetaData(List<CiDocument> ciDocuments, boolean onlyChanged)
     {
         log.info("CI document updater is about to update {} documents in corpus {}", ciDocuments.size(), corpus.getId());
 
@@ -169,33 +335,31 @@ public class CiDocumentUploader
 
         // Updating documents
         log.info("Updating {} documents...", documentsToUpdate.size());
-        Stopwatch uploadStopwatch = Stopwatch.createStarted();
-        for (int i = 0; i < documentsToUpdate.size(); i++)
-        {
-            Document documentToUpdate = documentsToUpdate.get(i);
-            if ( ! allDocumentNames.contains(documentToUpdate.getName())) {
-                log.warn("Document {} not in corpus, can't update", documentToUpdate.getName());
-                continue;
-            }
-
-            log.trace("Updating document: " + documentToUpdate);
-            try {
-                Stopwatch stopwatch = Stopwatch.createStarted();
-                conceptInsightsService.updateDocument(documentToUpdate);
-                stopwatch.stop();
-                log.debug("Updated document {}/{}: {} - {} in {}", i, documentsToUpdate.size(), documentToUpdate.getName(),
-                        documentToUpdate.getLabel(), stopwatch);
-                numUpdatedDocs++;
-            } catch (Exception e) {
-                log.error("Error while updating document {}", documentToUpdate.getLabel(), e);
+        UploadResult uploadResult = new UploadResult();
+        lastUploadResult = uploadResult;
+        try (BoundedExecutor executor = new BoundedExecutor(concurrency, "ci-updater");
+                CiProcessingStateSampler sampler = startSampler(uploadResult, documentsToUpdate.size())) {
+            for (int i = 0; i < documentsToUpdate.size(); i++)
+            {
+                Document documentToUpdate = documentsToUpdate.get(i);
+                if ( ! allDocumentNames.contains(documentToUpdate.getName())) {
+                    log.warn("Document {} not in corpus, can't update", documentToUpdate.getName());
+                    continue;
+                }
+                int index = i;
+                executor.submit(() -> updateDocument(documentToUpdate, onlyChanged, index, documentsToUpdate.size(),
+                        uploadResult));
             }
-
-            logStats(documentsToUpdate, uploadStopwatch);
+            executor.awaitCompletion();
         }
+        CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+        if (mirror != null)
+            mirror.saveSnapshotIfDirty();
 
         log.trace("Corpus stats: {}", () -> conceptInsightsService.getCorpusStats(corpus));
 
-        log.info("{} of {} documents were updated.", numUpdatedDocs, ciDocuments.size());
+        log.info("{} of {} documents were updated, {} were unchanged, {} failed.", uploadResult.succeeded.size(),
+                ciDocuments.size(), uploadResult.skipped.size(), uploadResult.failed.size());
         return documentsToUpdate;
     }
 
@@ -203,33 +367,261 @@ public class CiDocumentUploader
     {
         List<Document> documentsUpdated = new ArrayList<>();
         for (CiDocument ciDocument : ciDocuments)
+            documentsUpdated.add(ciDocumentToWatsonDocument(ciDocument));
+        return documentsUpdated;
+    }
+
+    private Document ciDocumentToWatsonDocument(CiDocument ciDocument)
+    {
+        return ciDocumentToWatsonDocument(ciDocument, ciDocument.readBody());
+    }
+
+    /**
+     * @param body The body of the document, as it was read
+     */
+    private Document ciDocumentToWatsonDocument(CiDocument ciDocument, String body)
+    {
+        Document document = ciDocumentToWatsonMetaData(ciDocument);
+        document.addParts(new Part("Text part", body, "text/plain"));
+        log.trace("document id: {} ", document::getId);
+        return document;
+    }
+
+    /**
+     * @return Document with name, label and user fields, without reading the body
+     */
+    private Document ciDocumentToWatsonMetaData(CiDocument ciDocument)
+    {
+        Document document = new Document(corpus, ciDocument.name);
+        document.setLabel(ciDocument.label);
+        // This should set the user fields, but doesn't seem to work somehow
+        // Map<String, String> userFields = new HashMap<>();
+        // userFields.put("companyName", ciDocument.companyName);
+        // document.setUserFields(userFields);
+        if (ciDocument.userFields != null && ! ciDocument.userFields.isEmpty())
+            document.setUserFields(ciDocument.userFields);
+        return document;
+    }
+
+    /**
+     * Determines which documents need to be deleted, and asks for confirmation in interactive mode.
+     * @return Names of the documents to delete, leaving out the ones that were deleted in a previous run.
+     */
+    private List<String> getNamesToDelete(Set<String> namesToKeep, Set<String> allDocumentNames)
+    {
+        Set<String> namesToDelete = new HashSet<>();
+        namesToDelete.addAll(allDocumentNames);
+        namesToDelete.removeAll(namesToKeep);
+        log.debug("Document ids to delete: {}", namesToDelete);
+
+        List<String> result = new ArrayList<>();
+        for (String documentName : namesToDelete)
         {
-            Document document = new Document(corpus, ciDocument.name);
-            document.setLabel(ciDocument.label);
-            // This should set the user fields, but doesn't seem to work somehow
-            // Map<String, String> userFields = new HashMap<>();
-            // userFields.put("companyName", ciDocument.companyName);
-            // document.setUserFields(userFields);
-            document.addParts(new Part("Text part", ciDocument.body, "text/plain"));
-            if (ciDocument.userFields != null && ! ciDocument.userFields.isEmpty())
-                document.setUserFields(ciDocument.userFields);
-            log.trace("document id: {} ", document::getId);
-            documentsUpdated.add(document);
+            if (journal != null && journal.isDeleted(documentName)) {
+                log.trace("Document already deleted in previous run, skipping: {}", documentName);
+                continue;
+            }
+            result.add(documentName);
         }
-        return documentsUpdated;
+        return result;
+    }
+
+    /**
+     * @return Whether the documents may be deleted. Only asks when interactive and there is something to delete.
+     */
+    private boolean confirmDeletes(List<String> namesToDelete)
+    {
+        if (namesToDelete.isEmpty() || ! interactive)
+            return true;
+        System.out.println(namesToDelete.size() + " documents will be deleted from CI. Continue? [Yn]");
+        Scanner scanner = new Scanner(System.in);
+        String answer = scanner.nextLine().toLowerCase();
+        return Objects.equals(answer, "y") || Objects.equals(answer, "");
     }
 
-    private void logStats(List<Document> documentsToUpdate, Stopwatch uploadStopwatch)
+    private void submitDelete(String documentName, int index, int total, BoundedExecutor executor,
+            UploadResult uploadResult)
     {
-        if (numUpdatedDocs % 25 == 0) {
-            // Log some stats
-            CiStatus.logProcessingState(conceptInsightsService, corpus);
-            if (numUpdatedDocs > 0) {
-                long elapsed = uploadStopwatch.elapsed(TimeUnit.NANOSECONDS);
-                long averageNanosPerUploadSoFar = elapsed / numUpdatedDocs;
-                long expectedTimeRemaining = averageNanosPerUploadSoFar * (documentsToUpdate.size() - numUpdatedDocs);
-                log.debug("Remaining time: {}", nanosToString(expectedTimeRemaining));
+        Document documentToDelete = new Document(corpus, documentName);
+        executor.submit(() -> deleteDocument(documentToDelete, index, total, uploadResult));
+    }
+
+    private void deleteDocument(Document documentToDelete, int index, int total, UploadResult uploadResult)
+    {
+        log.trace("Deleting document: " + documentToDelete);
+        try {
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            retryPolicy.run(() -> limiter.run(() -> conceptInsightsService.deleteDocument(documentToDelete)),
+                    e -> markRetried(documentToDelete, uploadResult));
+            stopwatch.stop();
+            log.debug("Deleted document {}/{}: {} - {} in {}", index, total, documentToDelete.getName(),
+                    documentToDelete.getLabel(), stopwatch);
+            uploadResult.deleted.add(documentToDelete.getName());
+            if (manifest != null)
+                manifest.remove(documentToDelete.getName());
+            CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+            if (mirror != null)
+                mirror.remove(documentToDelete.getName());
+            recordInJournal(documentToDelete, false);
+        } catch (Exception e) {
+            log.error("Error while deleting document {}", documentToDelete.getLabel(), e);
+            uploadResult.failed.add(documentToDelete.getName());
+        }
+    }
+
+    /**
+     * @param inCi Whether the document was in CI when the upload started
+     */
+    private void addDocument(CiDocument ciDocument, boolean inCi, int index, int total, UploadResult uploadResult)
+    {
+        try {
+            // The body is read once, for the emptiness check, the content hash and the request
+            String body = ciDocument.readBody();
+            if (skipUploadEmptyDocuments && (body == null || body.isEmpty())) {
+                log.debug("Document '{}' empty, skipping.", ciDocument.name);
+                uploadResult.skipped.add(ciDocument.name);
+                return;
+            }
+            String hash = manifest != null ? CiUploadManifest.hash(ciDocument, body) : null;
+            if (journal != null && journal.isAdded(ciDocument.name)) {
+                log.trace("Document already added in previous run, skipping: {}", ciDocument.name);
+                uploadResult.skipped.add(ciDocument.name);
+                if (manifest != null)
+                    manifest.put(ciDocument.name, hash);
+                return;
             }
+            if (manifest != null && inCi && ! manifest.isChanged(ciDocument.name, hash)) {
+                log.trace("Document unchanged since last upload, skipping: {}", ciDocument.name);
+                uploadResult.skipped.add(ciDocument.name);
+                return;
+            }
+            Document addedDocument = ciDocumentToWatsonDocument(ciDocument, body);
+            long size = addedDocument.getParts().stream().mapToLong(part -> part.getData().length()).sum();
+            log.trace("Adding document: " + addedDocument);
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            retryPolicy.run(() -> limiter.run(() -> conceptInsightsService.createDocument(addedDocument)),
+                    e -> markRetried(addedDocument, uploadResult));
+            stopwatch.stop();
+            log.debug("Added document {}/{}: {} - {} ({} kb) in {}", index, total, addedDocument.getName(),
+                    addedDocument.getLabel(), size / 1000, stopwatch);
+            uploadResult.succeeded.add(addedDocument.getName());
+            if (manifest != null)
+                manifest.put(ciDocument.name, hash);
+            CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+            if (mirror != null)
+                mirror.put(addedDocument);
+            recordInJournal(addedDocument, true);
+            incrementNumUpdatedDocs();
+        } catch (Exception e) {
+            log.error("Error while uploading document {}", ciDocument.label, e);
+            uploadResult.failed.add(ciDocument.name);
+        }
+    }
+
+    private void updateDocument(Document documentToUpdate, boolean onlyChanged, int index, int total,
+            UploadResult uploadResult)
+    {
+        log.trace("Updating document: " + documentToUpdate);
+        try {
+            if (onlyChanged) {
+                Document currentDocument = getCurrentMetaData(documentToUpdate, uploadResult);
+                if (hasSameMetaData(currentDocument, documentToUpdate)) {
+                    log.trace("Document {}/{} is unchanged: {}", index, total, documentToUpdate.getName());
+                    uploadResult.skipped.add(documentToUpdate.getName());
+                    return;
+                }
+            }
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            retryPolicy.run(() -> limiter.run(() -> conceptInsightsService.updateDocument(documentToUpdate)),
+                    e -> markRetried(documentToUpdate, uploadResult));
+            stopwatch.stop();
+            log.debug("Updated document {}/{}: {} - {} in {}", index, total, documentToUpdate.getName(),
+                    documentToUpdate.getLabel(), stopwatch);
+            uploadResult.succeeded.add(documentToUpdate.getName());
+            CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+            if (mirror != null)
+                mirror.put(documentToUpdate);
+            incrementNumUpdatedDocs();
+        } catch (Exception e) {
+            log.error("Error while updating document {}", documentToUpdate.getLabel(), e);
+            uploadResult.failed.add(documentToUpdate.getName());
+        }
+    }
+
+    /**
+     * @return The label and user fields of the document as they are in CI. Taken from the corpus mirror if possible.
+     */
+    private Document getCurrentMetaData(Document document, UploadResult uploadResult)
+    {
+        CiCorpusMirror mirror = CiCorpusMirror.get(corpus);
+        CiCorpusMirror.Entry entry = mirror != null ? mirror.getEntry(document.getName()) : null;
+        if (entry != null && entry.hasMetaData)
+            return entry.toDocument(corpus);
+        return retryPolicy.call(() -> limiter.call(() -> conceptInsightsService.getDocument(document)),
+                e -> markRetried(document, uploadResult));
+    }
+
+    /**
+     * @return Whether both documents have the same label and user fields. No user fields and empty user fields are
+     *     considered the same.
+     */
+    static boolean hasSameMetaData(Document a, Document b)
+    {
+        Map<String, String> userFieldsA = a.getUserFields() != null ? a.getUserFields() : Collections.emptyMap();
+        Map<String, String> userFieldsB = b.getUserFields() != null ? b.getUserFields() : Collections.emptyMap();
+        return Objects.equals(a.getLabel(), b.getLabel()) && userFieldsA.equals(userFieldsB);
+    }
+
+    private static void markRetried(Document document, UploadResult uploadResult)
+    {
+        synchronized (uploadResult.retried) {
+            if ( ! uploadResult.retried.contains(document.getName()))
+                uploadResult.retried.add(document.getName());
         }
     }
+
+    private void recordInJournal(Document document, boolean added)
+    {
+        if (journal == null)
+            return;
+        try {
+            if (added)
+                journal.recordAdded(document.getName());
+            else
+                journal.recordDeleted(document.getName());
+        } catch (IOException e) {
+            log.error("Could not write document {} to upload journal", document.getName(), e);
+        }
+    }
+
+    private void finishJournal(UploadResult uploadResult)
+    {
+        if (journal == null)
+            return;
+        try {
+            if (uploadResult.failed.isEmpty())
+                journal.delete();
+            else
+                log.info("Keeping upload journal because of failures, run again to resume");
+        } catch (IOException e) {
+            log.error("Could not delete upload journal", e);
+        }
+    }
+
+    private void saveManifest()
+    {
+        if (manifest == null)
+            return;
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            log.error("Could not save upload manifest", e);
+        }
+    }
+
+    private CiProcessingStateSampler startSampler(UploadResult uploadResult, int total)
+    {
+        return new CiProcessingStateSampler(conceptInsightsService, corpus, uploadResult.succeeded::size, total,
+                monitoringIntervalMillis);
+    }
 }
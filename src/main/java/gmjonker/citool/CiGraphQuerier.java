@@ -6,7 +6,9 @@ import com.ibm.watson.developer_cloud.service.NotFoundException;
 import com.ibm.watson.developer_cloud.service.ServiceResponseException;
 import gmjonker.util.LambdaLogger;
 
+import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static gmjonker.citool.CiUtil.getNameFromId;
 import static gmjonker.util.CollectionsUtil.map;
@@ -31,6 +33,9 @@ public class CiGraphQuerier
     ///
 
     private ConceptInsights conceptInsightsService;
+    private CiConcurrencyLimiter limiter = CiConcurrencyLimiter.getDefault();
+    private CiConceptExistenceCache existenceCache = new CiConceptExistenceCache();
+    private int concurrency = 4;
 
     public CiGraphQuerier(String ciUser, String ciPassword)
     {
@@ -38,6 +43,46 @@ public class CiGraphQuerier
         conceptInsightsService.setUsernameAndPassword(ciUser, ciPassword);
     }
 
+    public CiGraphQuerier(ConceptInsights conceptInsightsService)
+    {
+        this.conceptInsightsService = conceptInsightsService;
+    }
+
+    /**
+     * Sets the number of concepts that {@link #checkConceptNamesExist(Graph, Collection)} checks concurrently. Default
+     * is 4.
+     */
+    public void setConcurrency(int concurrency)
+    {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1, got " + concurrency);
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the limiter that adapts the number of concurrent calls to Watson. Default is
+     * {@link CiConcurrencyLimiter#getDefault()}.
+     */
+    public void setConcurrencyLimiter(CiConcurrencyLimiter limiter)
+    {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Sets the cache used by {@link #checkConceptNameExistsCached(Graph, String)}. Default is a new
+     * {@link CiConceptExistenceCache} with default settings. Use one with a snapshot file to remember concepts across
+     * runs.
+     */
+    public void setExistenceCache(CiConceptExistenceCache existenceCache)
+    {
+        this.existenceCache = existenceCache;
+    }
+
+    public CiConceptExistenceCache getExistenceCache()
+    {
+        return existenceCache;
+    }
+
     public void showGraphs()
     {
         Graphs graphs = conceptInsightsService.listGraphs();
@@ -49,7 +94,8 @@ public class CiGraphQuerier
     public boolean checkConceptNameExists(Graph graph, String conceptName)
     {
         try {
-            ConceptMetadata conceptMetadata = conceptInsightsService.getConcept(new Concept(graph, conceptName));
+            ConceptMetadata conceptMetadata =
+                    limiter.call(() -> conceptInsightsService.getConcept(new Concept(graph, conceptName)));
             log.debug("Concept '{}' found in graph '{}'", conceptName, graph.getName());
             log.debug("ConceptMetadata: {}", conceptMetadata);
             return true;
@@ -61,28 +107,80 @@ public class CiGraphQuerier
         return false;
     }
 
-    private Set<String> conceptNamesFound = new HashSet<>();
-    private Set<String> conceptNamesNotFound = new HashSet<>();
-
+    /**
+     * Like {@link #checkConceptNameExists(Graph, String)}, but remembers the answer in the existence cache. The answer
+     * is not remembered when the request failed.
+     */
     public boolean checkConceptNameExistsCached(Graph graph, String conceptName)
     {
-        if (conceptNamesFound.contains(conceptName))
-            return true;
-        if (conceptNamesNotFound.contains(conceptName))
-            return false;
+        Boolean exists = lookUpConceptName(graph, conceptName);
+        if (Boolean.FALSE.equals(exists))
+            log.warn("Concept '{}' not found in graph '{}'", conceptName, graph.getName());
+        return Boolean.TRUE.equals(exists);
+    }
+
+    /**
+     * Checks the existence of concepts concurrently. Duplicate names are checked once, and answers in the existence
+     * cache are used without a request. New answers are saved to the snapshot of the cache, if it has one.
+     */
+    public ConceptNameCheck checkConceptNamesExist(Graph graph, Collection<String> conceptNames)
+    {
+        Set<String> uniqueNames = new LinkedHashSet<>(conceptNames);
+        Map<String, Boolean> existenceByName = new ConcurrentHashMap<>();
+        Set<String> erroredNames = ConcurrentHashMap.newKeySet();
+        try (BoundedExecutor executor = new BoundedExecutor(concurrency, "ci-concept-checker")) {
+            for (String conceptName : uniqueNames) {
+                executor.submit(() -> {
+                    Boolean exists = lookUpConceptName(graph, conceptName);
+                    if (exists != null)
+                        existenceByName.put(conceptName, exists);
+                    else
+                        erroredNames.add(conceptName);
+                });
+            }
+            executor.awaitCompletion();
+        }
+        existenceCache.saveSnapshotIfDirty();
+
+        ConceptNameCheck check = new ConceptNameCheck();
+        for (String conceptName : uniqueNames) {
+            Boolean exists = existenceByName.get(conceptName);
+            if (exists == null)
+                check.errored.add(conceptName);
+            else
+                (exists ? check.found : check.notFound).add(conceptName);
+        }
+        log.debug("Checked {} concepts in graph '{}': {} found, {} not found, {} errors", uniqueNames.size(),
+                graph.getName(), check.found.size(), check.notFound.size(), check.errored.size());
+        return check;
+    }
+
+    /**
+     * @return Whether the concept exists, or null if that could not be determined.
+     */
+    @Nullable
+    private Boolean lookUpConceptName(Graph graph, String conceptName)
+    {
+        Boolean exists = existenceCache.get(graph, conceptName);
+        if (exists != null)
+            return exists;
         try {
-            ConceptMetadata conceptMetadata = conceptInsightsService.getConcept(new Concept(graph, conceptName));
+            ConceptMetadata conceptMetadata = CiRetryPolicy.DEFAULT.call(
+                    () -> limiter.call(() -> conceptInsightsService.getConcept(new Concept(graph, conceptName))),
+                    e -> log.debug("Retrying lookup of concept '{}'", conceptName)
+            );
             log.debug("Concept '{}' found in graph '{}'", conceptName, graph.getName());
             log.trace("ConceptMetadata: {}", conceptMetadata);
-            conceptNamesFound.add(conceptName);
+            existenceCache.put(graph, conceptName, true);
             return true;
         } catch (NotFoundException e) {
-            log.warn("Concept '{}' not found in graph '{}'", conceptName, graph.getName());
-            conceptNamesNotFound.add(conceptName);
-        } catch (ServiceResponseException e) {
+            log.debug("Concept '{}' not found in graph '{}'", conceptName, graph.getName());
+            existenceCache.put(graph, conceptName, false);
+            return false;
+        } catch (RuntimeException e) {
             log.error("Something went wrong while looking for concept '{}' in graph '{}'", conceptName, graph.getName(), e);
+            return null;
         }
-        return false;
     }
 
     // If byPrefix false, then 'chess' only matches 'chess'. If true, then it also matches 'chess master'.
@@ -93,7 +191,7 @@ public class CiGraphQuerier
         params.put(ConceptInsights.QUERY, label);
         params.put(ConceptInsights.PREFIX, byPrefix);
         params.put(ConceptInsights.LIMIT, howMany);
-        Matches matches = conceptInsightsService.searchGraphsConceptByLabel(Graph.WIKIPEDIA, params);
+        Matches matches = limiter.call(() -> conceptInsightsService.searchGraphsConceptByLabel(Graph.WIKIPEDIA, params));
         List<Concept> matchedConcepts = matches.getMatches();
         List<Concept> concepts = new ArrayList<>();
         for (Concept concept : matchedConcepts) {
@@ -112,7 +210,7 @@ public class CiGraphQuerier
     public List<ScoredConcept> identifyConceptsInText(String text)
     {
         log.trace("Annotating: '{}'", text);
-        Annotations annotations = conceptInsightsService.annotateText(Graph.WIKIPEDIA, text);
+        Annotations annotations = limiter.call(() -> conceptInsightsService.annotateText(Graph.WIKIPEDIA, text));
         List<ScoredConcept> scoredConcepts = annotations.getAnnotations();
         Collections.sort(scoredConcepts, (sc1, sc2) -> - Double.compare(sc1.getScore(), sc2.getScore()));
         log.trace("Found the following concepts: {}", scoredConcepts);
@@ -165,4 +263,21 @@ public class CiGraphQuerier
                 map(scores.getScores(), Score::getScore));
         return scores;
     }
+
+    /**
+     * Outcome of {@link #checkConceptNamesExist(Graph, Collection)}, with concept names in the order they were given.
+     */
+    public static class ConceptNameCheck
+    {
+        public final Set<String> found = new LinkedHashSet<>();
+        public final Set<String> notFound = new LinkedHashSet<>();
+        /** Concepts whose existence could not be determined, e.g. because Watson was unavailable. */
+        public final Set<String> errored = new LinkedHashSet<>();
+
+        @Override
+        public String toString()
+        {
+            return "ConceptNameCheck{found=" + found + ", notFound=" + notFound + ", errored=" + errored + "}";
+        }
+    }
 }
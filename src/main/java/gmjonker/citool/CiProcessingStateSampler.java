@@ -0,0 +1,121 @@
+package gmjonker.citool;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights;
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpus;
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.CorpusProcessingState;
+import gmjonker.util.LambdaLogger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static gmjonker.util.FormattingUtil.nanosToString;
+
+/**
+ * Polls the processing state of a corpus on a background thread, and combines it with the progress of an upload.
+ *
+ * <p>The uploading threads only increment a counter, they never wait for monitoring calls to Watson. The latest sample
+ * is logged and can be read with {@link #getLatestSample()}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiProcessingStateSampler implements AutoCloseable
+{
+    public static final int UNKNOWN_TOTAL = -1;
+
+    private final ConceptInsights conceptInsightsService;
+    private final Corpus corpus;
+    private final IntSupplier numDone;
+    private final int total;
+    private final long startNanos = System.nanoTime();
+    private final ScheduledExecutorService scheduler;
+    private volatile Sample latestSample = null;
+
+    private static final LambdaLogger log = new LambdaLogger(CiProcessingStateSampler.class);
+
+    /**
+     * Starts sampling.
+     * @param numDone Supplies the number of documents that have been uploaded so far
+     * @param total Total number of documents to upload, or UNKNOWN_TOTAL
+     * @param intervalMillis Time between samples
+     */
+    public CiProcessingStateSampler(ConceptInsights conceptInsightsService, Corpus corpus, IntSupplier numDone, int total,
+            long intervalMillis)
+    {
+        this.conceptInsightsService = conceptInsightsService;
+        this.corpus = corpus;
+        this.numDone = numDone;
+        this.total = total;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("ci-sampler-%d").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The latest sample, or null if no sample was taken yet.
+     */
+    public Sample getLatestSample()
+    {
+        return latestSample;
+    }
+
+    @Override
+    public void close()
+    {
+        scheduler.shutdownNow();
+    }
+
+    private void sample()
+    {
+        Sample previous = latestSample;
+        Integer ready = previous != null ? previous.ready : null;
+        Integer processing = previous != null ? previous.processing : null;
+        Integer error = previous != null ? previous.error : null;
+        try {
+            CorpusProcessingState corpusProcessingState = conceptInsightsService.getCorpusProcessingState(corpus);
+            ready = corpusProcessingState.getBuildStatus().getReady();
+            processing = corpusProcessingState.getBuildStatus().getProcessing();
+            error = corpusProcessingState.getBuildStatus().getError();
+        } catch (Exception e) {
+            log.debug("Could not get processing state of corpus {}: {}", corpus.getId(), e.toString());
+        }
+
+        int done = numDone.getAsInt();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        double docsPerSecond = done / (elapsedNanos / 1e9);
+        long remainingNanos = total == UNKNOWN_TOTAL || done == 0 ? -1 : (long) (elapsedNanos / (double) done * (total - done));
+
+        latestSample = new Sample(ready, processing, error, done, docsPerSecond, remainingNanos);
+        log.debug("Uploaded: {}{}, rate: {} docs/s, remaining time: {}. In CI ready: {}, processing: {}, error: {}", done,
+                total == UNKNOWN_TOTAL ? "" : "/" + total, String.format("%.1f", docsPerSecond),
+                remainingNanos == -1 ? "unknown" : nanosToString(remainingNanos), ready, processing, error);
+    }
+
+    /**
+     * Processing state of the corpus and progress of the upload at one point in time.
+     */
+    public static class Sample
+    {
+        /** Number of documents in the corpus that are ready, or null if unknown. */
+        public final Integer ready;
+        /** Number of documents in the corpus that are being processed, or null if unknown. */
+        public final Integer processing;
+        /** Number of documents in the corpus that failed processing, or null if unknown. */
+        public final Integer error;
+        public final int numDone;
+        public final double docsPerSecond;
+        /** Expected remaining time of the upload in nanoseconds, or -1 if unknown. */
+        public final long remainingNanos;
+
+        Sample(Integer ready, Integer processing, Integer error, int numDone, double docsPerSecond, long remainingNanos)
+        {
+            this.ready = ready;
+            this.processing = processing;
+            this.error = error;
+            this.numDone = numDone;
+            this.docsPerSecond = docsPerSecond;
+            this.remainingNanos = remainingNanos;
+        }
+    }
+}
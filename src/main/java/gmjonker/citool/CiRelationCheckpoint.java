@@ -0,0 +1,130 @@
+package gmjonker.citool;
+
+import gmjonker.util.LambdaLogger;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Append-only CSV file with the scores of every document that was completed during a relation sweep.
+ *
+ * <p>Each record holds a document name, followed by concept name and score pairs, followed by an end marker. A record
+ * is written and flushed as soon as the last request of a document completes, so that a crashed or killed sweep can
+ * be resumed by running it again with the same checkpoint file: documents in the checkpoint are not requested again.
+ * A document can have several records, e.g. after failed requests were replayed; their scores are merged.
+ */
+public class CiRelationCheckpoint implements Closeable
+{
+    private static final String END_OF_RECORD = "end";
+
+    private final File file;
+    private CSVPrinter printer;
+
+    private static final LambdaLogger log = new LambdaLogger(CiRelationCheckpoint.class);
+
+    /**
+     * Opens the checkpoint in the given file for appending. Use {@link #load} to read the records of a previous run.
+     */
+    public CiRelationCheckpoint(File file) throws IOException
+    {
+        this.file = file;
+        boolean incompleteLastLine = file.exists() && ! endsWithNewline();
+        this.printer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                StandardCharsets.UTF_8)), CSVFormat.DEFAULT);
+        if (incompleteLastLine)
+            printer.println();
+    }
+
+    /**
+     * Passes the scores of previously completed documents to the sink, once per document. The records of a document
+     * are merged first, so sinks that write a row per call don't get duplicate rows.
+     * @param documentNames Only load these documents
+     * @return Names of the loaded documents.
+     */
+    public Set<String> load(Collection<String> documentNames, CiRelationSink sink) throws IOException
+    {
+        Set<String> wantedNames = new HashSet<>(documentNames);
+        Map<String, Map<String, Double>> scoresByDocument = new LinkedHashMap<>();
+        if (file.length() == 0)
+            return scoresByDocument.keySet();
+        try (CSVParser parser = CSVParser.parse(file, StandardCharsets.UTF_8, CSVFormat.DEFAULT)) {
+            for (CSVRecord record : parser) {
+                // A record that was cut off by a crash has no end marker
+                if (record.size() % 2 != 0 || ! record.get(record.size() - 1).equals(END_OF_RECORD)) {
+                    log.warn("Skipping incomplete record {} in relation checkpoint {}", record.getRecordNumber(), file);
+                    continue;
+                }
+                String documentName = record.get(0);
+                if ( ! wantedNames.contains(documentName))
+                    continue;
+                Map<String, Double> scores = scoresByDocument.computeIfAbsent(documentName, name -> new HashMap<>());
+                for (int i = 1; i < record.size() - 1; i += 2)
+                    scores.put(record.get(i), Double.parseDouble(record.get(i + 1)));
+            }
+        } catch (IllegalStateException e) {
+            // Thrown by the parser on a cut off quoted value, which can only be at the end of the file
+            log.warn("Stopped reading relation checkpoint {} at an incomplete record: {}", file, e.toString());
+        }
+        for (Map.Entry<String, Map<String, Double>> documentScores : scoresByDocument.entrySet()) {
+            try {
+                sink.accept(documentScores.getKey(), documentScores.getValue());
+            } catch (IllegalArgumentException e) {
+                log.error("Sink rejected relations of document {} from checkpoint {}", documentScores.getKey(), file, e);
+            }
+        }
+        log.info("Resuming from relation checkpoint {}: {} documents were already done", file, scoresByDocument.size());
+        return scoresByDocument.keySet();
+    }
+
+    /**
+     * @param scores Scores of the document by concept name
+     */
+    public synchronized void record(String documentName, Map<String, Double> scores) throws IOException
+    {
+        if (printer == null)
+            throw new IOException("Checkpoint " + file + " is closed");
+        printer.print(documentName);
+        for (Map.Entry<String, Double> score : scores.entrySet()) {
+            printer.print(score.getKey());
+            printer.print(score.getValue());
+        }
+        printer.print(END_OF_RECORD);
+        printer.println();
+        printer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (printer != null) {
+            printer.close();
+            printer = null;
+        }
+    }
+
+    /**
+     * Closes and deletes the checkpoint, to be called when a sweep has completed.
+     */
+    public synchronized void delete() throws IOException
+    {
+        close();
+        Files.deleteIfExists(file.toPath());
+        log.debug("Deleted relation checkpoint {}", file);
+    }
+
+    private boolean endsWithNewline() throws IOException
+    {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            if (randomAccessFile.length() == 0)
+                return true;
+            randomAccessFile.seek(randomAccessFile.length() - 1);
+            return randomAccessFile.read() == '\n';
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package gmjonker.citool;
+
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Concept;
+import gmjonker.util.LambdaLogger;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CSV file with the relation requests that failed during a sweep. Each record holds a document name followed by the
+ * ids of the concepts that could not be scored for it. The file can be fed back to
+ * {@link CiDocumentConceptRelater#replayFailures(File)}.
+ */
+public class CiRelationFailureLog implements Closeable
+{
+    private final File file;
+    private CSVPrinter printer;
+
+    private static final LambdaLogger log = new LambdaLogger(CiRelationFailureLog.class);
+
+    /**
+     * @param append Whether to add to an existing log, or to start a new one
+     */
+    public CiRelationFailureLog(File file, boolean append) throws IOException
+    {
+        this.file = file;
+        this.printer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append),
+                StandardCharsets.UTF_8)), CSVFormat.EXCEL);
+    }
+
+    /**
+     * @return Concepts that failed, by document name, in the order of the log. Records of the same document are merged.
+     */
+    public static Map<String, List<Concept>> read(File file) throws IOException
+    {
+        Map<String, List<Concept>> failures = new LinkedHashMap<>();
+        try (CSVParser parser = CSVParser.parse(file, StandardCharsets.UTF_8, CSVFormat.EXCEL)) {
+            for (CSVRecord record : parser) {
+                List<Concept> concepts = failures.computeIfAbsent(record.get(0), name -> new ArrayList<>());
+                for (int i = 1; i < record.size(); i++) {
+                    String conceptId = record.get(i);
+                    concepts.add(new Concept(conceptId, CiUtil.getNameFromId(conceptId)));
+                }
+            }
+        }
+        log.debug("Read {} failed documents from {}", failures.size(), file);
+        return failures;
+    }
+
+    public synchronized void record(String documentName, List<Concept> failedConcepts) throws IOException
+    {
+        if (printer == null)
+            throw new IOException("Failure log " + file + " is closed");
+        printer.print(documentName);
+        for (Concept concept : failedConcepts)
+            printer.print(concept.getId());
+        printer.println();
+        printer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (printer != null) {
+            printer.close();
+            printer = null;
+        }
+    }
+}
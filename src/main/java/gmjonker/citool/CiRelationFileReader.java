@@ -0,0 +1,234 @@
+package gmjonker.citool;
+
+import gmjonker.citool.domain.RelationSource;
+import gmjonker.util.LambdaLogger;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads relations from a file written by {@link CiBinaryRelationSink}, without loading the scores into memory.
+ *
+ * <p>The rows are memory-mapped, so opening a file only costs reading the document and concept names, and lookups are
+ * served from the page cache of the operating system, which is shared by all processes that read the same file. Rows
+ * are mapped in segments of at most 2 GB, so files can be larger than that. The reader is safe for use by multiple
+ * threads.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiRelationFileReader implements RelationSource, Closeable
+{
+    private final File file;
+    private final FileChannel channel;
+    private final List<String> rowKeys;
+    private final List<String> columnKeys;
+    private final Map<String, Integer> rowIndexes;
+    private final Map<String, Integer> columnIndexes;
+    private final int rowSize;
+    private final int rowsPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    private static final LambdaLogger log = new LambdaLogger(CiRelationFileReader.class);
+
+    public CiRelationFileReader(File file) throws IOException
+    {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            if (in.readInt() != CiBinaryRelationSink.MAGIC)
+                throw new IOException("Not a relation file: " + file);
+            int version = in.readInt();
+            if (version != CiBinaryRelationSink.VERSION)
+                throw new IOException("Unsupported version " + version + " of relation file " + file);
+            int numColumns = in.readInt();
+            int numRows = in.readInt();
+            long rowNamesOffset = in.readLong();
+            if (numRows == -1)
+                throw new IOException("Relation file " + file + " is incomplete, its sink was not closed");
+            long rowsOffset = CiBinaryRelationSink.HEADER_SIZE;
+            this.columnKeys = new ArrayList<>(numColumns);
+            for (int i = 0; i < numColumns; i++) {
+                String columnKey = readString(in);
+                columnKeys.add(columnKey);
+                rowsOffset += 4 + columnKey.getBytes(StandardCharsets.UTF_8).length;
+            }
+
+            channel.position(rowNamesOffset);
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            this.rowKeys = new ArrayList<>(numRows);
+            for (int i = 0; i < numRows; i++)
+                rowKeys.add(readString(in));
+
+            this.columnIndexes = indexesOf(columnKeys, "concept");
+            this.rowIndexes = indexesOf(rowKeys, "document");
+            this.rowSize = Math.max(1, numColumns) * 4;
+            this.rowsPerSegment = Integer.MAX_VALUE / rowSize;
+            int numSegments = (numRows + rowsPerSegment - 1) / rowsPerSegment;
+            this.segments = new MappedByteBuffer[numSegments];
+            for (int segment = 0; segment < numSegments; segment++) {
+                int segmentRows = Math.min(rowsPerSegment, numRows - segment * rowsPerSegment);
+                segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        rowsOffset + (long) segment * rowsPerSegment * rowSize, (long) segmentRows * rowSize);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        log.debug("Opened relations of {} documents and {} concepts in {}", rowKeys.size(), columnKeys.size(), file);
+    }
+
+    /**
+     * @return The score of the document for the concept, or null if there is none.
+     */
+    @Nullable
+    public Double get(String rowKey, String columnKey)
+    {
+        int rowIndex = getRowIndex(rowKey);
+        int columnIndex = getColumnIndex(columnKey);
+        if (rowIndex == -1 || columnIndex == -1)
+            return null;
+        float value = get(rowIndex, columnIndex);
+        return Float.isNaN(value) ? null : (double) value;
+    }
+
+    /**
+     * @return The score at the given position, or NaN if there is none.
+     */
+    public float get(int rowIndex, int columnIndex)
+    {
+        if (columnIndex < 0 || columnIndex >= columnKeys.size())
+            throw new IndexOutOfBoundsException("Column " + columnIndex + " of " + columnKeys.size());
+        return segmentOf(rowIndex).getFloat(offsetOf(rowIndex) + columnIndex * 4);
+    }
+
+    /**
+     * @return A copy of the scores of the row, with NaN for concepts without a score.
+     */
+    @Override
+    public float[] getRow(int rowIndex)
+    {
+        float[] row = new float[columnKeys.size()];
+        ByteBuffer segment = segmentOf(rowIndex).duplicate();
+        segment.position(offsetOf(rowIndex));
+        segment.asFloatBuffer().get(row);
+        return row;
+    }
+
+    /**
+     * @return A copy of the scores of the column, with NaN for documents without a score. Reads a value from every row,
+     *     so prefer {@link #getRow(int)} where possible.
+     */
+    @Override
+    public float[] getColumn(int columnIndex)
+    {
+        if (columnIndex < 0 || columnIndex >= columnKeys.size())
+            throw new IndexOutOfBoundsException("Column " + columnIndex + " of " + columnKeys.size());
+        float[] column = new float[rowKeys.size()];
+        for (int rowIndex = 0; rowIndex < column.length; rowIndex++)
+            column[rowIndex] = segmentOf(rowIndex).getFloat(offsetOf(rowIndex) + columnIndex * 4);
+        return column;
+    }
+
+    /**
+     * @return The index of the document, or -1 if it is not in the file.
+     */
+    @Override
+    public int getRowIndex(String rowKey)
+    {
+        return rowIndexes.getOrDefault(rowKey, -1);
+    }
+
+    /**
+     * @return The index of the concept, or -1 if it is not in the file.
+     */
+    @Override
+    public int getColumnIndex(String columnKey)
+    {
+        return columnIndexes.getOrDefault(columnKey, -1);
+    }
+
+    @Override
+    public String getRowKey(int rowIndex)
+    {
+        return rowKeys.get(rowIndex);
+    }
+
+    @Override
+    public String getColumnKey(int columnIndex)
+    {
+        return columnKeys.get(columnIndex);
+    }
+
+    @Override
+    public List<String> getRowKeys()
+    {
+        return Collections.unmodifiableList(rowKeys);
+    }
+
+    public List<String> getColumnKeys()
+    {
+        return Collections.unmodifiableList(columnKeys);
+    }
+
+    @Override
+    public int getNumRows()
+    {
+        return rowKeys.size();
+    }
+
+    @Override
+    public int getNumColumns()
+    {
+        return columnKeys.size();
+    }
+
+    /**
+     * Closes the file. The mapped rows are released by the garbage collector, and must not be used after closing.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CiRelationFileReader{file=" + file + ", rows=" + rowKeys.size() + ", columns=" + columnKeys.size() + "}";
+    }
+
+    private ByteBuffer segmentOf(int rowIndex)
+    {
+        if (rowIndex < 0 || rowIndex >= rowKeys.size())
+            throw new IndexOutOfBoundsException("Row " + rowIndex + " of " + rowKeys.size());
+        return segments[rowIndex / rowsPerSegment];
+    }
+
+    private int offsetOf(int rowIndex)
+    {
+        return (rowIndex % rowsPerSegment) * rowSize;
+    }
+
+    private Map<String, Integer> indexesOf(List<String> keys, String kind) throws IOException
+    {
+        Map<String, Integer> indexes = new HashMap<>(keys.size() * 2);
+        for (int i = 0; i < keys.size(); i++)
+            if (indexes.putIfAbsent(keys.get(i), i) != null)
+                throw new IOException("Relation file " + file + " has " + kind + " " + keys.get(i) + " more than once");
+        return indexes;
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
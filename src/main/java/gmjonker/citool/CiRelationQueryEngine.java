@@ -0,0 +1,238 @@
+package gmjonker.citool;
+
+import gmjonker.citool.domain.RelationSource;
+import gmjonker.util.LambdaLogger;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static gmjonker.util.FormattingUtil.nanosToString;
+
+/**
+ * Answers "which N documents match best with these concepts" from relation scores that are already known, e.g. the
+ * result of a sweep by {@link CiDocumentConceptRelater} or a file opened with {@link CiRelationFileReader}, instead of
+ * asking Watson.
+ *
+ * <p>The score of a document for a set of concepts is the weighted mean of its scores for those concepts, where a
+ * missing score counts as zero. Documents without a score for any of the concepts are left out. The rows are scanned
+ * in parallel chunks, each keeping its best N documents in a min-heap, so a query costs one pass over the columns of
+ * the concepts and never sorts all documents.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiRelationQueryEngine
+{
+    /** Sources with fewer rows are scanned on the calling thread. */
+    private static final int MIN_ROWS_PER_CHUNK = 10000;
+
+    private final RelationSource relations;
+    private boolean parallel = true;
+
+    private static final LambdaLogger log = new LambdaLogger(CiRelationQueryEngine.class);
+
+    public CiRelationQueryEngine(RelationSource relations)
+    {
+        this.relations = relations;
+    }
+
+    /**
+     * Sets whether large sources are scanned on multiple threads of the common fork-join pool. Default is true.
+     */
+    public CiRelationQueryEngine setParallel(boolean parallel)
+    {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * @return The best n documents for the concept, by document name, best first.
+     */
+    public LinkedHashMap<String, Double> getTopDocuments(String conceptName, int n)
+    {
+        return getTopDocuments(Collections.singletonMap(conceptName, 1.0), n);
+    }
+
+    /**
+     * @return The best n documents for the concepts, all of equal weight, by document name, best first.
+     */
+    public LinkedHashMap<String, Double> getTopDocuments(Collection<String> conceptNames, int n)
+    {
+        Map<String, Double> conceptWeights = new LinkedHashMap<>();
+        for (String conceptName : conceptNames)
+            conceptWeights.put(conceptName, 1.0);
+        return getTopDocuments(conceptWeights, n);
+    }
+
+    /**
+     * @param conceptWeights Weight by concept name. Concepts that are not in the relations are ignored, but do count
+     *     in the total weight.
+     * @return The best n documents for the concepts, by document name, best first.
+     */
+    public LinkedHashMap<String, Double> getTopDocuments(Map<String, Double> conceptWeights, int n)
+    {
+        if (n < 1)
+            throw new IllegalArgumentException("n must be at least 1, got " + n);
+        long startNanos = System.nanoTime();
+
+        double totalWeight = 0;
+        List<float[]> columns = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        for (Map.Entry<String, Double> conceptWeight : conceptWeights.entrySet()) {
+            totalWeight += conceptWeight.getValue();
+            int columnIndex = relations.getColumnIndex(conceptWeight.getKey());
+            if (columnIndex == -1) {
+                log.debug("No relations with concept '{}'", conceptWeight.getKey());
+                continue;
+            }
+            columns.add(relations.getColumn(columnIndex));
+            weights.add(conceptWeight.getValue());
+        }
+        if (columns.isEmpty() || totalWeight <= 0)
+            return new LinkedHashMap<>();
+
+        // A matrix can grow while the columns are copied
+        int numRows = columns.stream().mapToInt(column -> column.length).min().getAsInt();
+        float[][] columnArray = columns.toArray(new float[columns.size()][]);
+        double[] normalizedWeights = new double[weights.size()];
+        for (int i = 0; i < normalizedWeights.length; i++)
+            normalizedWeights[i] = weights.get(i) / totalWeight;
+
+        int numChunks = parallel ? Math.max(1, Math.min(numRows / MIN_ROWS_PER_CHUNK,
+                Runtime.getRuntime().availableProcessors() * 4)) : 1;
+        IntStream chunks = IntStream.range(0, numChunks);
+        if (numChunks > 1)
+            chunks = chunks.parallel();
+        List<TopN> chunkResults = chunks
+                .mapToObj(chunk -> scan(columnArray, normalizedWeights, (int) ((long) numRows * chunk / numChunks),
+                        (int) ((long) numRows * (chunk + 1) / numChunks), n))
+                .collect(Collectors.toList());
+        TopN topN = new TopN(n);
+        for (TopN chunkResult : chunkResults)
+            for (int i = 0; i < chunkResult.size; i++)
+                topN.offer(chunkResult.rowIndexes[i], chunkResult.scores[i]);
+
+        LinkedHashMap<String, Double> topDocuments = topN.toMap(relations);
+        log.trace("Top {} documents of {} for {} concepts in {}", n, numRows, columns.size(),
+                nanosToString(System.nanoTime() - startNanos));
+        return topDocuments;
+    }
+
+    /**
+     * @return The best n documents for each set of concepts, by document name, best first.
+     */
+    public Map<Collection<String>, LinkedHashMap<String, Double>> getTopDocumentsPerConceptSet(
+            Collection<? extends Collection<String>> conceptNameSets, int n)
+    {
+        Map<Collection<String>, LinkedHashMap<String, Double>> topDocumentsPerSet = new LinkedHashMap<>();
+        for (Collection<String> conceptNames : conceptNameSets)
+            topDocumentsPerSet.put(conceptNames, getTopDocuments(conceptNames, n));
+        return topDocumentsPerSet;
+    }
+
+    private static TopN scan(float[][] columns, double[] weights, int fromRow, int toRow, int n)
+    {
+        TopN topN = new TopN(n);
+        for (int rowIndex = fromRow; rowIndex < toRow; rowIndex++) {
+            double score = 0;
+            boolean hasScore = false;
+            for (int i = 0; i < columns.length; i++) {
+                float value = columns[i][rowIndex];
+                if ( ! Float.isNaN(value)) {
+                    score += weights[i] * value;
+                    hasScore = true;
+                }
+            }
+            if (hasScore)
+                topN.offer(rowIndex, score);
+        }
+        return topN;
+    }
+
+    /**
+     * The n highest scores seen so far, in a binary min-heap of primitive arrays, so that a score that doesn't make
+     * it costs one comparison with the lowest one kept.
+     */
+    private static class TopN
+    {
+        final int[] rowIndexes;
+        final double[] scores;
+        int size = 0;
+
+        TopN(int n)
+        {
+            this.rowIndexes = new int[n];
+            this.scores = new double[n];
+        }
+
+        void offer(int rowIndex, double score)
+        {
+            if (size < scores.length) {
+                rowIndexes[size] = rowIndex;
+                scores[size] = score;
+                siftUp(size++);
+            } else if (isLower(0, score, rowIndex)) {
+                rowIndexes[0] = rowIndex;
+                scores[0] = score;
+                siftDown(0);
+            }
+        }
+
+        LinkedHashMap<String, Double> toMap(RelationSource relations)
+        {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++)
+                order[i] = i;
+            Arrays.sort(order, (a, b) -> scores[a] != scores[b]
+                    ? Double.compare(scores[b], scores[a])
+                    : Integer.compare(rowIndexes[a], rowIndexes[b]));
+            LinkedHashMap<String, Double> map = new LinkedHashMap<>();
+            for (int i : order)
+                map.put(relations.getRowKey(rowIndexes[i]), scores[i]);
+            return map;
+        }
+
+        /**
+         * @return Whether the entry at the heap position ranks lower than the given score. Ties go to the lowest row
+         *     index, so that results don't depend on how the rows were chunked.
+         */
+        private boolean isLower(int position, double score, int rowIndex)
+        {
+            return scores[position] < score || scores[position] == score && rowIndexes[position] > rowIndex;
+        }
+
+        private void siftUp(int position)
+        {
+            while (position > 0) {
+                int parent = (position - 1) / 2;
+                if ( ! isLower(position, scores[parent], rowIndexes[parent]))
+                    break;
+                swap(position, parent);
+                position = parent;
+            }
+        }
+
+        private void siftDown(int position)
+        {
+            while (true) {
+                int lowest = position;
+                for (int child = 2 * position + 1; child <= 2 * position + 2 && child < size; child++)
+                    if (isLower(child, scores[lowest], rowIndexes[lowest]))
+                        lowest = child;
+                if (lowest == position)
+                    return;
+                swap(position, lowest);
+                position = lowest;
+            }
+        }
+
+        private void swap(int i, int j)
+        {
+            int rowIndex = rowIndexes[i];
+            rowIndexes[i] = rowIndexes[j];
+            rowIndexes[j] = rowIndex;
+            double score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package gmjonker.citool;
+
+import gmjonker.citool.domain.RelationMatrix;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Receives the relations of each document as soon as all its requests have completed, so that a sweep doesn't need
+ * to keep the relations of all documents in memory. See {@link CiCsvRelationSink} and {@link CiBinaryRelationSink}.
+ */
+public interface CiRelationSink extends Closeable
+{
+    /**
+     * Called once for each completed document, from the request threads, but never concurrently. The records of a
+     * document in a resumed checkpoint are merged, so a document is passed only once.
+     * @param scores Scores by concept name. Concepts without a score are missing.
+     * @throws IllegalArgumentException If the sink rejects the document, e.g. because it was already passed
+     */
+    void accept(String documentName, Map<String, Double> scores) throws IOException;
+
+    /**
+     * @return A sink that puts the relations into the matrix. Closing it does nothing.
+     */
+    static CiRelationSink toMatrix(RelationMatrix matrix)
+    {
+        return new CiRelationSink()
+        {
+            @Override
+            public void accept(String documentName, Map<String, Double> scores)
+            {
+                int rowIndex = matrix.addRow(documentName);
+                for (Map.Entry<String, Double> score : scores.entrySet())
+                    matrix.put(rowIndex, matrix.addColumn(score.getKey()), score.getValue());
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+}
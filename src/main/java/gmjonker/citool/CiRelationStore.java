@@ -0,0 +1,154 @@
+package gmjonker.citool;
+
+import gmjonker.citool.domain.RelationMatrix;
+import gmjonker.util.LambdaLogger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Relations between documents and concepts of an earlier sweep, saved to disk, together with the last modified time
+ * each document had when it was scored. Used by
+ * {@link CiDocumentConceptRelater#updateDocumentConceptRelations(List, CiRelationStore)} to only score what changed.
+ *
+ * <p>The file is a gzipped binary file with the concept names, followed by one record per document with its name,
+ * last modified time and one float score per concept (NaN if there is none).
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiRelationStore
+{
+    public static final long UNKNOWN_LAST_MODIFIED = -1;
+    private static final int MAGIC = 0x43495231; // "CIR1"
+
+    private final File file;
+    private RelationMatrix relations = new RelationMatrix();
+    private Map<String, Long> lastModifiedByDocument = new HashMap<>();
+
+    private static final LambdaLogger log = new LambdaLogger(CiRelationStore.class);
+
+    /**
+     * Creates a store backed by the given file, and loads it if the file exists.
+     */
+    public CiRelationStore(File file) throws IOException
+    {
+        this.file = file;
+        if (file.exists())
+            load();
+    }
+
+    /**
+     * @return Relations of all documents in the store, with the concept names in the columns.
+     */
+    public RelationMatrix getRelations()
+    {
+        return relations;
+    }
+
+    /**
+     * @return The last modified time of the document when it was scored, or UNKNOWN_LAST_MODIFIED if it is not in the
+     *     store or the time was not known.
+     */
+    public long getLastModified(String documentName)
+    {
+        return lastModifiedByDocument.getOrDefault(documentName, UNKNOWN_LAST_MODIFIED);
+    }
+
+    public boolean containsDocument(String documentName)
+    {
+        return lastModifiedByDocument.containsKey(documentName);
+    }
+
+    /**
+     * @return Names of the concepts that all documents in the store were scored for.
+     */
+    public List<String> getConceptNames()
+    {
+        return relations.getColumnKeys();
+    }
+
+    /**
+     * Replaces the contents of the store. Documents that are not in the new relations are evicted.
+     * @param lastModifiedByDocument Last modified time of each document in the relations
+     */
+    public void replace(RelationMatrix relations, Map<String, Long> lastModifiedByDocument)
+    {
+        this.relations = relations;
+        this.lastModifiedByDocument = new HashMap<>(lastModifiedByDocument);
+    }
+
+    /**
+     * Writes the store to disk. Writes to a temporary file first, so that a crash during saving doesn't leave a
+     * corrupt store behind.
+     */
+    public synchronized void save() throws IOException
+    {
+        File tempFile = new File(file.getPath() + ".tmp");
+        List<String> conceptNames = relations.getColumnKeys();
+        List<String> documentNames = relations.getRowKeys();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                new FileOutputStream(tempFile))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(conceptNames.size());
+            for (String conceptName : conceptNames)
+                writeString(out, conceptName);
+            out.writeInt(documentNames.size());
+            for (int rowIndex = 0; rowIndex < documentNames.size(); rowIndex++) {
+                writeString(out, documentNames.get(rowIndex));
+                out.writeLong(getLastModified(documentNames.get(rowIndex)));
+                for (float score : relations.getRow(rowIndex))
+                    out.writeFloat(score);
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("Saved relations of {} documents and {} concepts to {}", documentNames.size(), conceptNames.size(),
+                file);
+    }
+
+    private void load() throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a relation store: " + file);
+            int numConcepts = in.readInt();
+            List<String> conceptNames = new ArrayList<>(numConcepts);
+            for (int i = 0; i < numConcepts; i++)
+                conceptNames.add(readString(in));
+            RelationMatrix loadedRelations = new RelationMatrix(conceptNames);
+            Map<String, Long> loadedLastModified = new HashMap<>();
+            int numDocuments = in.readInt();
+            for (int i = 0; i < numDocuments; i++) {
+                String documentName = readString(in);
+                loadedLastModified.put(documentName, in.readLong());
+                int rowIndex = loadedRelations.addRow(documentName);
+                for (int columnIndex = 0; columnIndex < numConcepts; columnIndex++) {
+                    float score = in.readFloat();
+                    if ( ! Float.isNaN(score))
+                        loadedRelations.put(rowIndex, columnIndex, score);
+                }
+            }
+            replace(loadedRelations, loadedLastModified);
+        }
+        log.info("Loaded relations of {} documents and {} concepts from {}", lastModifiedByDocument.size(),
+                relations.getNumColumns(), file);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,101 @@
+package gmjonker.citool;
+
+import gmjonker.util.LambdaLogger;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Retries calls to Watson that failed because of overload, timeouts or network problems.
+ *
+ * <p>Waits with exponential backoff and full jitter between attempts: before attempt n, sleeps a random time between 0
+ * and min(maxDelay, baseDelay * 2^(n-2)). The jitter keeps concurrent workers from retrying in lockstep. Errors that
+ * won't go away by retrying, like a bad request or a missing document, are passed on immediately.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CiRetryPolicy
+{
+    public static final CiRetryPolicy NO_RETRIES = new CiRetryPolicy(1, 0, 0);
+    public static final CiRetryPolicy DEFAULT = new CiRetryPolicy(5, 500, 30000);
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    private static final LambdaLogger log = new LambdaLogger(CiRetryPolicy.class);
+
+    /**
+     * @param maxAttempts Maximum number of attempts, including the first one
+     * @param baseDelayMillis Maximum delay before the first retry
+     * @param maxDelayMillis Maximum delay before any retry
+     */
+    public CiRetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis)
+    {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("Need at least one attempt, got " + maxAttempts);
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @return Whether the call that threw this exception is worth retrying.
+     */
+    public static boolean isRetryable(Throwable throwable)
+    {
+        if (CiConcurrencyLimiter.isOverload(throwable))
+            return true;
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            if (t instanceof IOException)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Performs a call, retrying it if it fails with a retryable exception.
+     * @param onRetry Called with the exception before each retry
+     * @throws RuntimeException The exception of the last attempt, if all attempts failed
+     */
+    public <T> T call(Supplier<T> request, Consumer<RuntimeException> onRetry)
+    {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return request.get();
+            } catch (RuntimeException e) {
+                if (attempt >= maxAttempts || ! isRetryable(e))
+                    throw e;
+                long delay = ThreadLocalRandom.current().nextLong(getMaxDelayMillis(attempt) + 1);
+                log.debug("Attempt {} of {} failed ({}), retrying in {} ms", attempt, maxAttempts, e.toString(), delay);
+                onRetry.accept(e);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public void run(Runnable request, Consumer<RuntimeException> onRetry)
+    {
+        call(() -> {
+            request.run();
+            return null;
+        }, onRetry);
+    }
+
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    private long getMaxDelayMillis(int failedAttempt)
+    {
+        // Cap the shift, so that the delay doesn't overflow
+        return Math.min(maxDelayMillis, baseDelayMillis << Math.min(failedAttempt - 1, 30));
+    }
+}
@@ -0,0 +1,153 @@
+package gmjonker.citool;
+
+import gmjonker.util.LambdaLogger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only journal of the documents that were added to or deleted from CI during an upload run.
+ *
+ * <p>Every completed document is written and flushed immediately, so that a crashed or killed run can be resumed
+ * by running it again with the same journal file: documents in the journal are not sent again. When a run completes
+ * without failures, the uploader deletes the journal, so that the next run starts fresh.
+ */
+public class CiUploadJournal implements Closeable
+{
+    private static final String ADDED = "added";
+    private static final String DELETED = "deleted";
+
+    private final File file;
+    private final Set<String> addedNames = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<String> deletedNames = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private Writer writer;
+    private boolean closed = false;
+
+    private static final LambdaLogger log = new LambdaLogger(CiUploadJournal.class);
+
+    /**
+     * Opens the journal in the given file, loading the documents of a previous run if the file exists.
+     */
+    public CiUploadJournal(File file) throws IOException
+    {
+        this.file = file;
+        boolean incompleteLastLine = false;
+        if (file.exists()) {
+            incompleteLastLine = ! endsWithNewline();
+            load(incompleteLastLine);
+        }
+        openWriter();
+        if (incompleteLastLine)
+            writer.write("\n");
+    }
+
+    public boolean isAdded(String documentName)
+    {
+        return addedNames.contains(documentName);
+    }
+
+    public boolean isDeleted(String documentName)
+    {
+        return deletedNames.contains(documentName);
+    }
+
+    public void recordAdded(String documentName) throws IOException
+    {
+        append(ADDED, documentName);
+        addedNames.add(documentName);
+    }
+
+    public void recordDeleted(String documentName) throws IOException
+    {
+        append(DELETED, documentName);
+        deletedNames.add(documentName);
+    }
+
+    /**
+     * @return Number of documents in the journal.
+     */
+    public int size()
+    {
+        return addedNames.size() + deletedNames.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        closed = true;
+        closeWriter();
+    }
+
+    /**
+     * Empties the journal and deletes its file, to be called when a run has completed. The journal can still be used
+     * for a next run, which creates the file again.
+     */
+    public synchronized void delete() throws IOException
+    {
+        closeWriter();
+        Files.deleteIfExists(file.toPath());
+        addedNames.clear();
+        deletedNames.clear();
+        log.debug("Deleted upload journal {}", file);
+    }
+
+    private synchronized void append(String operation, String documentName) throws IOException
+    {
+        if (closed)
+            throw new IOException("Journal " + file + " is closed");
+        if (writer == null)
+            openWriter();
+        writer.write(operation + "\t" + documentName + "\n");
+        writer.flush();
+    }
+
+    private void openWriter() throws IOException
+    {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    private void closeWriter() throws IOException
+    {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * @param incompleteLastLine If we were killed while writing, the last line may be incomplete. Complete lines always
+     *     end with a newline.
+     */
+    private void load(boolean incompleteLastLine) throws IOException
+    {
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        if ( ! lines.isEmpty() && incompleteLastLine)
+            lines = lines.subList(0, lines.size() - 1);
+        for (String line : lines) {
+            String[] fields = line.split("\t", 2);
+            if (fields.length == 2 && fields[0].equals(ADDED))
+                addedNames.add(fields[1]);
+            else if (fields.length == 2 && fields[0].equals(DELETED))
+                deletedNames.add(fields[1]);
+            else
+                log.warn("Skipping invalid line in upload journal {}: '{}'", file, line);
+        }
+        log.info("Resuming from upload journal {}: {} documents were already added, {} already deleted", file,
+                addedNames.size(), deletedNames.size());
+    }
+
+    private boolean endsWithNewline() throws IOException
+    {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            if (randomAccessFile.length() == 0)
+                return true;
+            randomAccessFile.seek(randomAccessFile.length() - 1);
+            return randomAccessFile.read() == '\n';
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package gmjonker.citool;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import gmjonker.util.LambdaLogger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local on-disk record of the content hash of every document that was uploaded, keyed by document name.
+ *
+ * <p>A document whose hash equals the recorded one has not changed since the last upload and doesn't need to be sent
+ * to Watson again. The manifest is a plain text file with one tab-separated name and hash per line.
+ */
+public class CiUploadManifest
+{
+    private final File file;
+    private final Map<String, String> hashes = new ConcurrentHashMap<>();
+
+    private static final LambdaLogger log = new LambdaLogger(CiUploadManifest.class);
+
+    /**
+     * Creates a manifest backed by the given file, and loads it if the file exists.
+     */
+    public CiUploadManifest(File file) throws IOException
+    {
+        this.file = file;
+        if (file.exists())
+            load();
+    }
+
+    /**
+     * @return A hash over the label, body and user fields of the document.
+     */
+    public static String hash(CiDocument ciDocument)
+    {
+        return hash(ciDocument, ciDocument.readBody());
+    }
+
+    /**
+     * @param body The body of the document, if it was already read
+     * @return A hash over the label, body and user fields of the document.
+     */
+    public static String hash(CiDocument ciDocument, String body)
+    {
+        Hasher hasher = Hashing.sha256().newHasher();
+        putString(hasher, ciDocument.label);
+        putString(hasher, body);
+        if (ciDocument.userFields != null) {
+            // Sort, so that the order of the map doesn't influence the hash
+            for (Map.Entry<String, String> entry : new TreeMap<>(ciDocument.userFields).entrySet()) {
+                putString(hasher, entry.getKey());
+                putString(hasher, entry.getValue());
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return Whether the document differs from the last version that was recorded.
+     */
+    public boolean isChanged(CiDocument ciDocument)
+    {
+        return isChanged(ciDocument.name, hash(ciDocument));
+    }
+
+    /**
+     * @param hash Hash as returned by {@link #hash(CiDocument)}
+     * @return Whether the document differs from the last version that was recorded.
+     */
+    public boolean isChanged(String documentName, String hash)
+    {
+        return ! hash.equals(hashes.get(documentName));
+    }
+
+    /**
+     * Records that the document was uploaded in its current form.
+     */
+    public void put(CiDocument ciDocument)
+    {
+        put(ciDocument.name, hash(ciDocument));
+    }
+
+    /**
+     * @param hash Hash as returned by {@link #hash(CiDocument)}
+     */
+    public void put(String documentName, String hash)
+    {
+        hashes.put(documentName, hash);
+    }
+
+    public void remove(String documentName)
+    {
+        hashes.remove(documentName);
+    }
+
+    public int size()
+    {
+        return hashes.size();
+    }
+
+    /**
+     * Writes the manifest to disk. Writes to a temporary file first, so that a crash during saving doesn't leave a
+     * corrupt manifest behind.
+     */
+    public synchronized void save() throws IOException
+    {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile),
+                StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, String> entry : new TreeMap<>(hashes).entrySet())
+                writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("Saved manifest with {} documents to {}", hashes.size(), file);
+    }
+
+    private void load() throws IOException
+    {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab == -1) {
+                    log.warn("Skipping invalid line in manifest {}: '{}'", file, line);
+                    continue;
+                }
+                hashes.put(line.substring(0, tab), line.substring(tab + 1));
+            }
+        }
+        log.debug("Loaded manifest with {} documents from {}", hashes.size(), file);
+    }
+
+    private static void putString(Hasher hasher, String string)
+    {
+        // Write length first, so that ("ab", "c") and ("a", "bc") get different hashes. -1 marks null.
+        if (string == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(string.length());
+            hasher.putString(string, StandardCharsets.UTF_8);
+        }
+    }
+}
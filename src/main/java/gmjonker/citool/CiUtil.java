@@ -4,6 +4,7 @@ import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights;
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.Accounts;
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpus;
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.Document;
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Graph;
 import gmjonker.util.LambdaLogger;
 
 import java.util.Collection;
@@ -15,6 +16,10 @@ import static java.util.Arrays.asList;
 @SuppressWarnings("WeakerAccess")
 public class CiUtil
 {
+    /**
+     * @deprecated Concepts are validated against Watson by {@link CiGraphQuerier#checkConceptNamesExist}.
+     */
+    @Deprecated
     public static final List<String> CONCEPT_NAMES_IN_WIKIPEDIA_BUT_NOT_IN_WATSON = asList( "Food_hall" );
 
     private static final LambdaLogger log = new LambdaLogger(CiUtil.class);
@@ -47,6 +52,17 @@ public class CiUtil
         return id.substring(lastIndex + 1);
     }
 
+    /**
+     * @return The graph of a concept id of the form /graphs/{account}/{graph}/concepts/{name}.
+     */
+    public static Graph getGraphFromConceptId(String conceptId)
+    {
+        String[] parts = conceptId.split("/", 6);
+        if (parts.length < 6 || ! parts[1].equals("graphs") || ! parts[4].equals("concepts"))
+            throw new RuntimeException("Id '" + conceptId + "' not a valid Watson concept id");
+        return new Graph(parts[2], parts[3]);
+    }
+
     public static String conceptNameToId(String accountId, String graphName, String conceptName)
     {
         return "/graphs/" + accountId + "/" + graphName + "/concepts/" + conceptName;
@@ -3,9 +3,12 @@ package gmjonker.citool.domain;
 import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights;
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.*;
 import gmjonker.citool.CiCorpusHelper;
+import gmjonker.citool.CiDocumentHydrator;
 import gmjonker.citool.CiUtil;
+import lombok.Cleanup;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -37,9 +40,32 @@ public class MatchedDocument extends Result
 
     public static List<String> explain(MatchedDocument matchedDocument, ConceptInsights conceptInsightsService, Corpus corpus)
     {
-        final int PADDING_TEXT_LENGTH = 30;
-
         Document document = CiCorpusHelper.getDocumentById(conceptInsightsService, corpus, matchedDocument.getId());
+        return explain(matchedDocument, document);
+    }
+
+    /**
+     * Explains many matched documents, fetching the documents concurrently.
+     * @return Explanations by document id. Documents that could not be fetched are missing.
+     */
+    public static Map<String, List<String>> explain(List<MatchedDocument> matchedDocuments, CiDocumentHydrator hydrator)
+    {
+        Map<String, MatchedDocument> matchedDocumentsById = new HashMap<>();
+        for (MatchedDocument matchedDocument : matchedDocuments)
+            matchedDocumentsById.put(matchedDocument.getId(), matchedDocument);
+        Map<String, List<String>> explanations = new HashMap<>();
+        @Cleanup CiDocumentHydrator.Hydration hydration = hydrator.hydrate(matchedDocumentsById.keySet());
+        hydration.forEachRemaining(document ->
+                explanations.put(document.getId(), explain(matchedDocumentsById.get(document.getId()), document)));
+        return explanations;
+    }
+
+    /**
+     * @param document The full matched document, including its parts
+     */
+    public static List<String> explain(MatchedDocument matchedDocument, Document document)
+    {
+        final int PADDING_TEXT_LENGTH = 30;
 
         List<String> fragments = new ArrayList<>();
 
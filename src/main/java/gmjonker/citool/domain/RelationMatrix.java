@@ -0,0 +1,698 @@
+package gmjonker.citool.domain;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Table;
+import com.google.common.collect.Tables;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Relation scores between documents (rows) and concepts (columns), stored as one primitive float array per row.
+ *
+ * <p>Row and column keys are mapped to dense indexes, so a cell costs four bytes instead of a boxed Double and two
+ * hash map entries. Missing cells are stored as NaN. Rows and columns can be added at any time. All methods are
+ * thread-safe: adding a row or column briefly locks the whole matrix, but cells are locked per row, so threads that
+ * write different rows don't wait for each other. Methods that read several rows see each row at some point during
+ * the call, not all rows at the same point. The number of values is counted as cells are written, per row, per column
+ * and in total. {@link #asTable()} gives a read-only {@link Table} view for callers that expect a table.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RelationMatrix implements RelationSource
+{
+    /** Guards the keys, the list of rows and the column sizes. Cells are guarded by their row. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> rowIndexes = new HashMap<>();
+    private final Map<String, Integer> columnIndexes = new HashMap<>();
+    private final List<String> rowKeys = new ArrayList<>();
+    private final List<String> columnKeys = new ArrayList<>();
+    private final List<Row> rows = new ArrayList<>();
+    private final List<AtomicInteger> columnSizes = new ArrayList<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public RelationMatrix()
+    {
+    }
+
+    /**
+     * @param columnKeys Columns to add up front, in this order
+     */
+    public RelationMatrix(Collection<String> columnKeys)
+    {
+        for (String columnKey : columnKeys)
+            addColumn(columnKey);
+    }
+
+    /**
+     * @return Index of the row, which is added if it doesn't exist yet.
+     */
+    public int addRow(String rowKey)
+    {
+        int index = getRowIndex(rowKey);
+        if (index != -1)
+            return index;
+        lock.writeLock().lock();
+        try {
+            Integer existingIndex = rowIndexes.get(rowKey);
+            if (existingIndex != null)
+                return existingIndex;
+            index = rowKeys.size();
+            rowIndexes.put(rowKey, index);
+            rowKeys.add(rowKey);
+            rows.add(new Row(columnKeys.size()));
+            return index;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Index of the column, which is added if it doesn't exist yet.
+     */
+    public int addColumn(String columnKey)
+    {
+        int index = getColumnIndex(columnKey);
+        if (index != -1)
+            return index;
+        lock.writeLock().lock();
+        try {
+            Integer existingIndex = columnIndexes.get(columnKey);
+            if (existingIndex != null)
+                return existingIndex;
+            index = columnKeys.size();
+            columnIndexes.put(columnKey, index);
+            columnKeys.add(columnKey);
+            columnSizes.add(new AtomicInteger());
+            return index;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void put(String rowKey, String columnKey, double value)
+    {
+        put(addRow(rowKey), addColumn(columnKey), value);
+    }
+
+    public void put(int rowIndex, int columnIndex, double value)
+    {
+        Row row;
+        AtomicInteger columnSize;
+        int numColumns;
+        lock.readLock().lock();
+        try {
+            row = rows.get(rowIndex);
+            columnSize = columnSizes.get(columnIndex);
+            numColumns = columnKeys.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        int delta;
+        synchronized (row) {
+            if (columnIndex >= row.values.length) {
+                // Columns were added after the row was created
+                int oldLength = row.values.length;
+                row.values = Arrays.copyOf(row.values, numColumns);
+                Arrays.fill(row.values, oldLength, row.values.length, Float.NaN);
+            }
+            boolean wasEmpty = Float.isNaN(row.values[columnIndex]);
+            row.values[columnIndex] = (float) value;
+            boolean isEmpty = Float.isNaN(row.values[columnIndex]);
+            delta = wasEmpty == isEmpty ? 0 : isEmpty ? -1 : 1;
+            row.size += delta;
+        }
+        if (delta != 0) {
+            columnSize.addAndGet(delta);
+            size.addAndGet(delta);
+        }
+    }
+
+    /**
+     * @return The value, or NaN if the cell is empty or the row or column doesn't exist.
+     */
+    public double get(String rowKey, String columnKey)
+    {
+        int rowIndex = getRowIndex(rowKey);
+        int columnIndex = getColumnIndex(columnKey);
+        if (rowIndex == -1 || columnIndex == -1)
+            return Double.NaN;
+        return get(rowIndex, columnIndex);
+    }
+
+    /**
+     * @return The value, or NaN if the cell is empty.
+     */
+    public double get(int rowIndex, int columnIndex)
+    {
+        Row row = getRowObject(rowIndex);
+        synchronized (row) {
+            return columnIndex < row.values.length ? row.values[columnIndex] : Double.NaN;
+        }
+    }
+
+    /**
+     * @return Index of the row, or -1 if it doesn't exist.
+     */
+    @Override
+    public int getRowIndex(String rowKey)
+    {
+        lock.readLock().lock();
+        try {
+            Integer index = rowIndexes.get(rowKey);
+            return index != null ? index : -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Index of the column, or -1 if it doesn't exist.
+     */
+    @Override
+    public int getColumnIndex(String columnKey)
+    {
+        lock.readLock().lock();
+        try {
+            Integer index = columnIndexes.get(columnKey);
+            return index != null ? index : -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getRowKey(int rowIndex)
+    {
+        lock.readLock().lock();
+        try {
+            return rowKeys.get(rowIndex);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getColumnKey(int columnIndex)
+    {
+        lock.readLock().lock();
+        try {
+            return columnKeys.get(columnIndex);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Row keys in index order.
+     */
+    @Override
+    public List<String> getRowKeys()
+    {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(rowKeys);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Column keys in index order.
+     */
+    public List<String> getColumnKeys()
+    {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(columnKeys);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getNumRows()
+    {
+        lock.readLock().lock();
+        try {
+            return rowKeys.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getNumColumns()
+    {
+        lock.readLock().lock();
+        try {
+            return columnKeys.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return A copy of the row, with one value per column and NaN for empty cells.
+     */
+    @Override
+    public float[] getRow(int rowIndex)
+    {
+        int numColumns = getNumColumns();
+        Row row = getRowObject(rowIndex);
+        synchronized (row) {
+            float[] copy = Arrays.copyOf(row.values, Math.max(numColumns, row.values.length));
+            Arrays.fill(copy, row.values.length, copy.length, Float.NaN);
+            return copy;
+        }
+    }
+
+    /**
+     * @return A copy of the column, with one value per row and NaN for empty cells.
+     */
+    @Override
+    public float[] getColumn(int columnIndex)
+    {
+        lock.readLock().lock();
+        try {
+            float[] column = new float[rows.size()];
+            for (int i = 0; i < rows.size(); i++) {
+                Row row = rows.get(i);
+                synchronized (row) {
+                    column[i] = columnIndex < row.values.length ? row.values[columnIndex] : Float.NaN;
+                }
+            }
+            return column;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of non-empty cells.
+     */
+    public int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return Number of non-empty cells in the row.
+     */
+    public int getRowSize(int rowIndex)
+    {
+        Row row = getRowObject(rowIndex);
+        synchronized (row) {
+            return row.size;
+        }
+    }
+
+    /**
+     * @return Number of non-empty cells in the column.
+     */
+    public int getColumnSize(int columnIndex)
+    {
+        lock.readLock().lock();
+        try {
+            return columnSizes.get(columnIndex).get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Calls the consumer for each non-empty cell, row by row. The consumer is called without holding a lock, so it may
+     * use the matrix.
+     */
+    public void forEach(CellConsumer consumer)
+    {
+        int numRows = getNumRows();
+        for (int rowIndex = 0; rowIndex < numRows; rowIndex++) {
+            Row row = getRowObject(rowIndex);
+            float[] values;
+            synchronized (row) {
+                if (row.size == 0)
+                    continue;
+                values = row.values.clone();
+            }
+            for (int columnIndex = 0; columnIndex < values.length; columnIndex++)
+                if ( ! Float.isNaN(values[columnIndex]))
+                    consumer.accept(rowIndex, columnIndex, values[columnIndex]);
+        }
+    }
+
+    /**
+     * @return A read-only view of the matrix as a table. Changes to the matrix are visible in the view.
+     */
+    public Table<String, String, Double> asTable()
+    {
+        return new TableView();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RelationMatrix{rows=" + getNumRows() + ", columns=" + getNumColumns() + "}";
+    }
+
+    private Row getRowObject(int rowIndex)
+    {
+        lock.readLock().lock();
+        try {
+            return rows.get(rowIndex);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @FunctionalInterface
+    public interface CellConsumer
+    {
+        void accept(int rowIndex, int columnIndex, double value);
+    }
+
+    /**
+     * The values of a row, and the number of them that are not empty. Guarded by itself. The array is replaced when it
+     * grows, the row isn't.
+     */
+    private static class Row
+    {
+        float[] values;
+        int size = 0;
+
+        Row(int numColumns)
+        {
+            values = new float[numColumns];
+            Arrays.fill(values, Float.NaN);
+        }
+    }
+
+    private class TableView implements Table<String, String, Double>
+    {
+        @Override
+        public boolean contains(@Nullable Object rowKey, @Nullable Object columnKey)
+        {
+            return get(rowKey, columnKey) != null;
+        }
+
+        @Override
+        public boolean containsRow(@Nullable Object rowKey)
+        {
+            if ( ! (rowKey instanceof String))
+                return false;
+            int rowIndex = getRowIndex((String) rowKey);
+            return rowIndex != -1 && getRowSize(rowIndex) > 0;
+        }
+
+        @Override
+        public boolean containsColumn(@Nullable Object columnKey)
+        {
+            if ( ! (columnKey instanceof String))
+                return false;
+            int columnIndex = getColumnIndex((String) columnKey);
+            return columnIndex != -1 && getColumnSize(columnIndex) > 0;
+        }
+
+        @Override
+        public boolean containsValue(@Nullable Object value)
+        {
+            if ( ! (value instanceof Double))
+                return false;
+            double doubleValue = (Double) value;
+            int numRows = getNumRows();
+            for (int rowIndex = 0; rowIndex < numRows; rowIndex++) {
+                Row row = getRowObject(rowIndex);
+                synchronized (row) {
+                    if (row.size == 0)
+                        continue;
+                    for (float cellValue : row.values)
+                        if ( ! Float.isNaN(cellValue) && Double.compare(cellValue, doubleValue) == 0)
+                            return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Double get(@Nullable Object rowKey, @Nullable Object columnKey)
+        {
+            if ( ! (rowKey instanceof String) || ! (columnKey instanceof String))
+                return null;
+            double value = RelationMatrix.this.get((String) rowKey, (String) columnKey);
+            return Double.isNaN(value) ? null : value;
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            return RelationMatrix.this.size() == 0;
+        }
+
+        @Override
+        public int size()
+        {
+            return RelationMatrix.this.size();
+        }
+
+        @Override
+        public void clear()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Double put(String rowKey, String columnKey, Double value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void putAll(Table<? extends String, ? extends String, ? extends Double> table)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Double remove(@Nullable Object rowKey, @Nullable Object columnKey)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, Double> row(String rowKey)
+        {
+            return new LineView(rowKey, true);
+        }
+
+        @Override
+        public Map<String, Double> column(String columnKey)
+        {
+            return new LineView(columnKey, false);
+        }
+
+        @Override
+        public Set<Cell<String, String, Double>> cellSet()
+        {
+            return new AbstractSet<Cell<String, String, Double>>()
+            {
+                @Override
+                public Iterator<Cell<String, String, Double>> iterator()
+                {
+                    return new CellIterator();
+                }
+
+                @Override
+                public boolean contains(@Nullable Object object)
+                {
+                    if ( ! (object instanceof Cell))
+                        return false;
+                    Cell<?, ?, ?> cell = (Cell<?, ?, ?>) object;
+                    Double value = get(cell.getRowKey(), cell.getColumnKey());
+                    return value != null && value.equals(cell.getValue());
+                }
+
+                @Override
+                public int size()
+                {
+                    return RelationMatrix.this.size();
+                }
+            };
+        }
+
+        /**
+         * Like other tables, only contains rows that have at least one value.
+         */
+        @Override
+        public Set<String> rowKeySet()
+        {
+            Set<String> rowKeySet = new LinkedHashSet<>();
+            int numRows = getNumRows();
+            for (int rowIndex = 0; rowIndex < numRows; rowIndex++)
+                if (getRowSize(rowIndex) > 0)
+                    rowKeySet.add(getRowKey(rowIndex));
+            return Collections.unmodifiableSet(rowKeySet);
+        }
+
+        /**
+         * Like other tables, only contains columns that have at least one value.
+         */
+        @Override
+        public Set<String> columnKeySet()
+        {
+            Set<String> columnKeySet = new LinkedHashSet<>();
+            int numColumns = getNumColumns();
+            for (int columnIndex = 0; columnIndex < numColumns; columnIndex++)
+                if (getColumnSize(columnIndex) > 0)
+                    columnKeySet.add(getColumnKey(columnIndex));
+            return Collections.unmodifiableSet(columnKeySet);
+        }
+
+        @Override
+        public Collection<Double> values()
+        {
+            return new AbstractCollection<Double>()
+            {
+                @Override
+                public Iterator<Double> iterator()
+                {
+                    Iterator<Cell<String, String, Double>> cells = new CellIterator();
+                    return new AbstractIterator<Double>()
+                    {
+                        @Override
+                        protected Double computeNext()
+                        {
+                            return cells.hasNext() ? cells.next().getValue() : endOfData();
+                        }
+                    };
+                }
+
+                @Override
+                public boolean contains(@Nullable Object value)
+                {
+                    return containsValue(value);
+                }
+
+                @Override
+                public int size()
+                {
+                    return RelationMatrix.this.size();
+                }
+            };
+        }
+
+        @Override
+        public Map<String, Map<String, Double>> rowMap()
+        {
+            Map<String, Map<String, Double>> rowMap = new LinkedHashMap<>();
+            for (String rowKey : rowKeySet())
+                rowMap.put(rowKey, row(rowKey));
+            return Collections.unmodifiableMap(rowMap);
+        }
+
+        @Override
+        public Map<String, Map<String, Double>> columnMap()
+        {
+            Map<String, Map<String, Double>> columnMap = new LinkedHashMap<>();
+            for (String columnKey : columnKeySet())
+                columnMap.put(columnKey, column(columnKey));
+            return Collections.unmodifiableMap(columnMap);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object object)
+        {
+            return object == this || object instanceof Table && cellSet().equals(((Table<?, ?, ?>) object).cellSet());
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return cellSet().hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return rowMap().toString();
+        }
+    }
+
+    /**
+     * Iterates over the non-empty cells, row by row. Only one row is copied at a time, like {@link #forEach}.
+     */
+    private class CellIterator extends AbstractIterator<Table.Cell<String, String, Double>>
+    {
+        private int rowIndex = -1;
+        private float[] values = new float[0];
+        private int columnIndex = 0;
+
+        @Override
+        protected Table.Cell<String, String, Double> computeNext()
+        {
+            while (true) {
+                for (; columnIndex < values.length; columnIndex++) {
+                    if ( ! Float.isNaN(values[columnIndex])) {
+                        int cellColumnIndex = columnIndex++;
+                        return Tables.immutableCell(getRowKey(rowIndex), getColumnKey(cellColumnIndex),
+                                (double) values[cellColumnIndex]);
+                    }
+                }
+                if (++rowIndex >= getNumRows())
+                    return endOfData();
+                Row row = getRowObject(rowIndex);
+                synchronized (row) {
+                    values = row.size == 0 ? new float[0] : row.values.clone();
+                }
+                columnIndex = 0;
+            }
+        }
+    }
+
+    /**
+     * Read-only view of the non-empty cells of one row or one column.
+     */
+    private class LineView extends AbstractMap<String, Double>
+    {
+        private final String key;
+        private final boolean isRow;
+
+        LineView(String key, boolean isRow)
+        {
+            this.key = key;
+            this.isRow = isRow;
+        }
+
+        @Override
+        public Double get(Object otherKey)
+        {
+            if ( ! (otherKey instanceof String))
+                return null;
+            double value = isRow
+                    ? RelationMatrix.this.get(key, (String) otherKey)
+                    : RelationMatrix.this.get((String) otherKey, key);
+            return Double.isNaN(value) ? null : value;
+        }
+
+        @Override
+        public boolean containsKey(Object otherKey)
+        {
+            return get(otherKey) != null;
+        }
+
+        @Override
+        public Set<Entry<String, Double>> entrySet()
+        {
+            Map<String, Double> entries = new LinkedHashMap<>();
+            int index = isRow ? getRowIndex(key) : getColumnIndex(key);
+            if (index != -1) {
+                float[] values = isRow ? getRow(index) : getColumn(index);
+                for (int i = 0; i < values.length; i++)
+                    if ( ! Float.isNaN(values[i]))
+                        entries.put(isRow ? getColumnKey(i) : getRowKey(i), (double) values[i]);
+            }
+            return Collections.unmodifiableMap(entries).entrySet();
+        }
+    }
+}
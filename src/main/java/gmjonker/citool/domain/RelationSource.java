@@ -0,0 +1,43 @@
+package gmjonker.citool.domain;
+
+import java.util.List;
+
+/**
+ * Read access to relation scores between documents (rows) and concepts (columns), by dense index. Missing scores are
+ * NaN. Implemented by the in-memory {@link RelationMatrix} and by readers of relation files.
+ */
+public interface RelationSource
+{
+    int getNumRows();
+
+    int getNumColumns();
+
+    String getRowKey(int rowIndex);
+
+    String getColumnKey(int columnIndex);
+
+    /**
+     * @return Index of the row, or -1 if it doesn't exist.
+     */
+    int getRowIndex(String rowKey);
+
+    /**
+     * @return Index of the column, or -1 if it doesn't exist.
+     */
+    int getColumnIndex(String columnKey);
+
+    /**
+     * @return Row keys in index order.
+     */
+    List<String> getRowKeys();
+
+    /**
+     * @return A copy of the row, with one value per column and NaN for missing scores.
+     */
+    float[] getRow(int rowIndex);
+
+    /**
+     * @return A copy of the column, with one value per row and NaN for missing scores.
+     */
+    float[] getColumn(int columnIndex);
+}
@@ -1,9 +1,27 @@
 package gmjonker.citool.temp;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Contains lists of succeeded and failed uploads.
+ *
+ * <p>The lists contain document names and are safe to add to from multiple threads.
  */
 public class UploadResult
 {
+    public final List<String> succeeded = Collections.synchronizedList(new ArrayList<>());
+    public final List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+    public final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+    public final List<String> skipped = Collections.synchronizedList(new ArrayList<>());
+    /** Documents that needed more than one attempt. They are also in either succeeded, deleted or failed. */
+    public final List<String> retried = Collections.synchronizedList(new ArrayList<>());
 
+    @Override
+    public String toString()
+    {
+        return "UploadResult{succeeded=" + succeeded.size() + ", deleted=" + deleted.size() + ", failed=" + failed.size()
+                + ", skipped=" + skipped.size() + ", retried=" + retried.size() + "}";
+    }
 }
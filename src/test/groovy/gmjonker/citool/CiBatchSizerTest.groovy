@@ -0,0 +1,45 @@
+package gmjonker.citool
+
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class CiBatchSizerTest extends Specification
+{
+    def "Grow on fast requests, shrink on slow and failed ones"()
+    {
+        given:
+        def sizer = new CiBatchSizer(20, 1, 30).setTargetLatency(1000)
+        def fast = TimeUnit.MILLISECONDS.toNanos(100)
+        def slow = TimeUnit.MILLISECONDS.toNanos(5000)
+
+        when: "Requests are fast"
+        sizer.onSuccess(20, fast)
+        sizer.onSuccess(25, fast)
+
+        then: "The size grows up to the maximum"
+        sizer.getSize() == 30
+
+        when: "A small request from before the growth is fast"
+        sizer.onSuccess(10, fast)
+
+        then: "The size stays the same"
+        sizer.getSize() == 30
+
+        when: "A request is slow"
+        sizer.onSuccess(30, slow)
+
+        then: "The size shrinks by a quarter"
+        sizer.getSize() == 23
+
+        when: "Requests fail"
+        sizer.onFailure(23)
+        sizer.onFailure(11)
+        sizer.onFailure(5)
+        sizer.onFailure(2)
+        sizer.onFailure(1)
+
+        then: "The size halves down to the minimum"
+        sizer.getSize() == 1
+    }
+}
@@ -0,0 +1,54 @@
+package gmjonker.citool
+
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Graph
+import spock.lang.Specification
+
+class CiConceptExistenceCacheTest extends Specification
+{
+    def "Answers are kept per graph, and not found answers expire sooner"()
+    {
+        given:
+        def wikipedia = new Graph("wikipedia", "en-20120601")
+        def other = new Graph("wikipedia", "en-latest")
+        def cache = new CiConceptExistenceCache(60000, 50, 10)
+
+        when:
+        cache.put(wikipedia, "Chess", true)
+        cache.put(wikipedia, "Chesss", false)
+
+        then:
+        cache.get(wikipedia, "Chess") == true
+        cache.get(wikipedia, "Chesss") == false
+        cache.get(other, "Chess") == null
+
+        when:
+        Thread.sleep(100)
+
+        then:
+        cache.get(wikipedia, "Chess") == true
+        cache.get(wikipedia, "Chesss") == null
+    }
+
+    def "Answers survive a restart through the snapshot"()
+    {
+        given:
+        def graph = new Graph("wikipedia", "en-20120601")
+        def snapshotFile = File.createTempFile("concepts", ".bin")
+        snapshotFile.delete()
+        def cache = new CiConceptExistenceCache().setSnapshotFile(snapshotFile)
+        cache.put(graph, "Chess", true)
+        cache.put(graph, "Chesss", false)
+
+        when:
+        cache.saveSnapshot()
+        def loadedCache = new CiConceptExistenceCache().setSnapshotFile(snapshotFile)
+
+        then:
+        loadedCache.size() == 2
+        loadedCache.get(graph, "Chess") == true
+        loadedCache.get(graph, "Chesss") == false
+
+        cleanup:
+        snapshotFile.delete()
+    }
+}
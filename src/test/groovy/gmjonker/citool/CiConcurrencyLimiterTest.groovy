@@ -0,0 +1,64 @@
+package gmjonker.citool
+
+import spock.lang.Specification
+
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class CiConcurrencyLimiterTest extends Specification
+{
+    def "Limit does not grow while it isn't used"()
+    {
+        given:
+        def limiter = new CiConcurrencyLimiter(4, 1, 64)
+
+        when: "We do many calls one after another"
+        100.times { limiter.call { "ok" } }
+
+        then:
+        limiter.limit == 4
+        limiter.numSuccesses == 100
+    }
+
+    def "Limit is decreased multiplicatively on timeouts"()
+    {
+        given:
+        def limiter = new CiConcurrencyLimiter(8, 1, 64)
+
+        when: "A call times out"
+        limiter.call { throw new RuntimeException(new SocketTimeoutException("timeout")) }
+
+        then: "The exception is passed on and the limit is halved"
+        thrown(RuntimeException)
+        limiter.limit == 4
+        limiter.numOverloads == 1
+        limiter.inFlight == 0
+    }
+
+    def "Number of calls in flight never exceeds the limit"()
+    {
+        given:
+        def limiter = new CiConcurrencyLimiter(2, 1, 3)
+        def inFlight = new AtomicInteger()
+        def maxInFlight = new AtomicInteger()
+        def executor = Executors.newFixedThreadPool(8)
+
+        when: "Many threads do calls at the same time"
+        200.times {
+            executor.execute {
+                limiter.call {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), { a, b -> Math.max(a, b) })
+                    Thread.sleep(1)
+                    inFlight.decrementAndGet()
+                }
+            }
+        }
+        executor.shutdown()
+        executor.awaitTermination(1, TimeUnit.MINUTES)
+
+        then:
+        maxInFlight.get() <= 3
+        limiter.limit <= 3
+    }
+}
@@ -0,0 +1,99 @@
+package gmjonker.citool
+
+import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpus
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Documents
+import com.ibm.watson.developer_cloud.service.NotFoundException
+import spock.lang.Specification
+
+class CiCorpusHelperTest extends Specification
+{
+    def "Page through all document ids"()
+    {
+        given: "A corpus with 25 documents that is listed in pages of 10"
+        def corpus = Mock(Corpus)
+        corpus.getId() >> "/corpora/myAccount/myCorpus"
+        def allIds = (0..<25).collect { "/corpora/myAccount/myCorpus/documents/doc" + it }
+        def conceptInsights = Mock(ConceptInsights)
+        def requestedCursors = []
+        conceptInsights.listDocuments(corpus, _) >> { args ->
+            int cursor = args[1][ConceptInsights.CURSOR]
+            int limit = args[1][ConceptInsights.LIMIT]
+            requestedCursors << cursor
+            new Documents(documents: allIds.subList(Math.min(cursor, allIds.size()), Math.min(cursor + limit, allIds.size())))
+        }
+
+        when: "We iterate over the ids"
+        def ids = CiCorpusHelper.iterateDocumentIds(conceptInsights, corpus, 10).collect()
+
+        then: "All ids are returned in order, and the last short page ends the listing"
+        ids == allIds
+        requestedCursors == [ 0, 10, 20 ]
+    }
+
+    def "Look up requested documents directly instead of listing the corpus"()
+    {
+        given: "A corpus in which doc2 doesn't exist"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        def ids = (1..3).collect { CiUtil.documentNameToId("myAccount", "myCorpus", "doc" + it) }
+
+        when: "We get the requested documents"
+        def documentIds = CiCorpusHelper.getDocumentIds(conceptInsights, corpus, CiCorpusHelper.NO_LIMIT, ids)
+
+        then: "Each document is checked, and the corpus is not listed"
+        0 * conceptInsights.listDocuments(_, _)
+        3 * conceptInsights.getDocumentProcessingState(_) >> { args ->
+            if (args[0].getName() == "doc2")
+                throw new NotFoundException("not found")
+            null
+        }
+        documentIds == [ ids[0], ids[2] ] as Set
+    }
+
+    def "Report a failed existence check instead of treating the document as missing"()
+    {
+        given: "A corpus in which the check of doc2 fails"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.getDocumentProcessingState(_) >> { args ->
+            if (args[0].getName() == "doc2")
+                throw new IllegalStateException("boom")
+            null
+        }
+        def ids = (1..3).collect { CiUtil.documentNameToId("myAccount", "myCorpus", "doc" + it) }
+
+        when: "We check which documents exist"
+        CiCorpusHelper.getExistingDocumentIds(conceptInsights, corpus, ids)
+
+        then: "The failure is thrown"
+        def e = thrown(RuntimeException)
+        e.cause instanceof IllegalStateException
+    }
+
+    def "Find the same documents by partial name with and without a mirror"()
+    {
+        given: "A corpus with names that differ in case and accents"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        def names = [ "Café Noir", "CAFE-bar", "Koffie", "cafés" ]
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents: names.collect {
+            CiUtil.documentNameToId("myAccount", "myCorpus", it) })
+        def mirror = new CiCorpusMirror(conceptInsights, corpus, 60000).setFetchMetaData(false)
+
+        when: "We run the same queries by listing the corpus and through the mirror"
+        def queries = [ "café", "CAFE", "é", "fé n", "koffie", "thee" ]
+        def listed = queries.collect { query ->
+            CiCorpusHelper.findDocumentsByPartialName(conceptInsights, corpus, query)*.getName() as Set }
+        CiCorpusMirror.register(mirror)
+        def mirrored = queries.collect { query ->
+            CiCorpusHelper.findDocumentsByPartialName(conceptInsights, corpus, query)*.getName() as Set }
+
+        then: "Both give the same matches"
+        mirrored == listed
+        listed[0] == [ "Café Noir", "CAFE-bar", "cafés" ] as Set
+
+        cleanup:
+        CiCorpusMirror.unregister(corpus)
+    }
+}
@@ -0,0 +1,124 @@
+package gmjonker.citool
+
+import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpus
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Document
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.DocumentProcessingStatus
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Documents
+import spock.lang.Specification
+
+class CiCorpusMirrorTest extends Specification
+{
+    def "Serve lookups from the mirror, and restore it from a snapshot"()
+    {
+        given: "A corpus with two documents"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        def numListings = 0
+        conceptInsights.listDocuments(corpus, _) >> { args ->
+            numListings++
+            new Documents(documents: [
+                    "/corpora/myAccount/myCorpus/documents/doc1", "/corpora/myAccount/myCorpus/documents/doc2" ])
+        }
+        conceptInsights.getDocument(_) >> { args ->
+            new Document(name: args[0].getName(), label: "label " + args[0].getName(), userFields: [a: "1"])
+        }
+        def snapshotFile = File.createTempFile("mirror", ".bin")
+        snapshotFile.delete()
+        def mirror = new CiCorpusMirror(conceptInsights, corpus, 60000).setSnapshotFile(snapshotFile)
+        CiCorpusMirror.register(mirror)
+
+        when: "We look up documents twice, and record a deletion of our own"
+        def firstNames = CiCorpusHelper.getAllDocumentNames(conceptInsights, corpus)
+        def secondNames = CiCorpusHelper.getAllDocumentNames(conceptInsights, corpus)
+        mirror.remove("doc2")
+        mirror.saveSnapshot()
+        def restored = new CiCorpusMirror(Mock(ConceptInsights), corpus, 60000).setSnapshotFile(snapshotFile)
+
+        then: "The corpus is listed once, and the snapshot has the metadata"
+        numListings == 1
+        firstNames == [ "doc1", "doc2" ] as Set
+        secondNames == firstNames
+        restored.getDocumentNames() == [ "doc1" ] as Set
+        restored.getEntry("doc1").label == "label doc1"
+        restored.getEntry("doc1").userFields == [a: "1"]
+
+        cleanup:
+        CiCorpusMirror.unregister(corpus)
+        snapshotFile.delete()
+    }
+
+    def "Save our own writes, and get their last modified time from CI on the next refresh"()
+    {
+        given: "A mirror of an empty corpus, with a snapshot file"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        def documentNames = []
+        conceptInsights.listDocuments(corpus, _) >> { args ->
+            new Documents(documents: documentNames.collect { "/corpora/myAccount/myCorpus/documents/" + it })
+        }
+        def snapshotFile = File.createTempFile("mirror", ".bin")
+        snapshotFile.delete()
+        def mirror = new CiCorpusMirror(conceptInsights, corpus, 60000).setSnapshotFile(snapshotFile)
+        mirror.refresh()
+
+        when: "We record a document that we added, and save the changes"
+        documentNames << "doc1"
+        mirror.put(new Document(corpus, "doc1").with { label = "label"; userFields = [a: "1"]; it })
+        mirror.saveSnapshotIfDirty()
+        def restored = new CiCorpusMirror(conceptInsights, corpus, 60000).setSnapshotFile(snapshotFile)
+
+        then: "The write survives a restart, with an unknown last modified time"
+        restored.getEntry("doc1").label == "label"
+        restored.getEntry("doc1").lastModifiedMillis == -1
+
+        when: "The restored mirror is refreshed"
+        restored.refresh()
+
+        then: "The last modified time is taken from the processing state, without downloading the document"
+        1 * conceptInsights.getDocumentProcessingState({ it.getName() == "doc1" }) >>
+                new DocumentProcessingStatus(lastModified: new Date(1234))
+        0 * conceptInsights.getDocument(_)
+        restored.getEntry("doc1").lastModifiedMillis == 1234
+        restored.getEntry("doc1").userFields == [a: "1"]
+
+        cleanup:
+        snapshotFile.delete()
+    }
+
+    def "Fetch the metadata again of documents that were modified by others"()
+    {
+        given: "A mirror of a corpus with two documents"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents: [
+                "/corpora/myAccount/myCorpus/documents/doc1", "/corpora/myAccount/myCorpus/documents/doc2" ])
+        def labels = [doc1: "old label", doc2: "old label"]
+        def modifiedMillis = [doc1: 1000L, doc2: 1000L]
+        def fetchDocument = { args ->
+            def name = args[0].getName()
+            def document = new Document(corpus, name)
+            document.label = labels[name]
+            document.lastModified = new Date(modifiedMillis[name])
+            document
+        }
+        conceptInsights.getDocument(_) >> fetchDocument
+        conceptInsights.getDocumentProcessingState(_) >> { args ->
+            new DocumentProcessingStatus(lastModified: new Date(modifiedMillis[args[0].getName()]))
+        }
+        def mirror = new CiCorpusMirror(conceptInsights, corpus, 60000)
+        mirror.refresh()
+
+        when: "Another process modifies one document, and the mirror is refreshed"
+        labels.doc1 = "new label"
+        modifiedMillis.doc1 = 2000L
+        mirror.refresh()
+
+        then: "Only the modified document is downloaded again"
+        1 * conceptInsights.getDocument({ it.getName() == "doc1" }) >> fetchDocument
+        0 * conceptInsights.getDocument({ it.getName() == "doc2" })
+        mirror.getEntry("doc1").label == "new label"
+        mirror.getEntry("doc1").lastModifiedMillis == 2000
+        mirror.getEntry("doc2").label == "old label"
+    }
+}
@@ -0,0 +1,298 @@
+package gmjonker.citool
+
+import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.*
+import com.ibm.watson.developer_cloud.service.BadRequestException
+import com.ibm.watson.developer_cloud.service.NotFoundException
+import spock.lang.Specification
+
+class CiDocumentConceptRelaterTest extends Specification
+{
+    def "Relate documents and concepts concurrently"()
+    {
+        given: "A corpus with 10 documents, and 50 concepts"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents:
+                (0..<10).collect { CiUtil.documentNameToId("myAccount", "myCorpus", "doc" + it) })
+        conceptInsights.getDocumentRelationScores(_, _) >> { args ->
+            new Scores(scores: args[1].collect { new Score(concept: it.getId(), score: 0.5) })
+        }
+        def graph = new Graph("wikipedia", "en-20120601")
+        def concepts = (0..<50).collect { new Concept(graph, "Concept" + it) }
+        def relater = new CiDocumentConceptRelater(conceptInsights, corpus, false)
+        relater.setConcurrency(4)
+
+        when: "We get the relations"
+        def relations = relater.getDocumentConceptNameRelations(concepts, CiDocumentConceptRelater.NO_LIMIT)
+
+        then: "Every document is related to every concept"
+        relations.rowKeySet().size() == 10
+        relations.columnKeySet().size() == 50
+        relations.size() == 500
+    }
+
+    def "Resume a sweep from the checkpoint, and replay failed requests"()
+    {
+        given: "A service that fails on doc3 during the first sweep"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents:
+                (0..<5).collect { CiUtil.documentNameToId("myAccount", "myCorpus", "doc" + it) })
+        def outage = true
+        def requestedDocuments = [].asSynchronized()
+        conceptInsights.getDocumentRelationScores(_, _) >> { args ->
+            requestedDocuments << args[0].getName()
+            if (outage && args[0].getName() == "doc3")
+                throw new RuntimeException("boom")
+            new Scores(scores: args[1].collect { new Score(concept: it.getId(), score: 0.5) })
+        }
+        def graph = new Graph("wikipedia", "en-20120601")
+        def concepts = (0..<30).collect { new Concept(graph, "Concept" + it) }
+        def checkpointFile = File.createTempFile("checkpoint", ".csv")
+        def failureLogFile = File.createTempFile("failures", ".csv")
+        def relater = new CiDocumentConceptRelater(conceptInsights, corpus, false)
+        relater.setConcurrency(2)
+        relater.setCheckpointFile(checkpointFile)
+        relater.setFailureLog(failureLogFile)
+
+        when: "We sweep, sweep again after the outage, and replay the failures"
+        def first = relater.getDocumentConceptRelationMatrix(concepts, CiDocumentConceptRelater.NO_LIMIT, [])
+        outage = false
+        requestedDocuments.clear()
+        def second = relater.getDocumentConceptRelationMatrix(concepts, CiDocumentConceptRelater.NO_LIMIT, [])
+        def requestedInSecondSweep = new ArrayList(requestedDocuments)
+        def replayed = relater.replayFailures(failureLogFile)
+
+        then: "The second sweep comes from the checkpoint, and the replay only requests doc3"
+        first.size() == 4 * 30
+        second.size() == 4 * 30
+        requestedInSecondSweep.isEmpty()
+        replayed.size() == 30
+        replayed.getRowKeys() == [ "doc3" ]
+        CiRelationFailureLog.read(failureLogFile).isEmpty()
+
+        cleanup:
+        checkpointFile.delete()
+        failureLogFile.delete()
+    }
+
+    def "Split failing batches to isolate the offending concept, and leave it out of later requests"()
+    {
+        given: "A service that rejects every request that includes Concept7"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents:
+                [ CiUtil.documentNameToId("myAccount", "myCorpus", "doc0"),
+                  CiUtil.documentNameToId("myAccount", "myCorpus", "doc1") ])
+        def requestsByDocument = [doc0: 0, doc1: 0].asSynchronized()
+        conceptInsights.getDocumentRelationScores(_, _) >> { args ->
+            requestsByDocument[args[0].getName()]++
+            if (args[1].any { it.getName() == "Concept7" })
+                throw new BadRequestException("invalid concept")
+            new Scores(scores: args[1].collect { new Score(concept: it.getId(), score: 0.5) })
+        }
+        def graph = new Graph("wikipedia", "en-20120601")
+        def concepts = (0..<20).collect { new Concept(graph, "Concept" + it) }
+        def relater = new CiDocumentConceptRelater(conceptInsights, corpus, false)
+        relater.setBatchSizer(CiBatchSizer.fixed(20))
+
+        when: "We get the relations"
+        def relations = relater.getDocumentConceptRelationMatrix(concepts, CiDocumentConceptRelater.NO_LIMIT, [])
+
+        then: "Only Concept7 is missing, and the second document is requested once, without it"
+        relations.size() == 2 * 19
+        Double.isNaN(relations.get("doc0", "Concept7"))
+        Double.isNaN(relations.get("doc1", "Concept7"))
+        requestsByDocument.doc0 > 1
+        requestsByDocument.doc1 == 1
+    }
+
+    def "Report a document that was deleted during the sweep once, without splitting its batches"()
+    {
+        given: "A service on which doc0 has been deleted"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents:
+                [ CiUtil.documentNameToId("myAccount", "myCorpus", "doc0") ])
+        conceptInsights.getDocumentProcessingState(_) >> { throw new NotFoundException("not found") }
+        def numRequests = 0
+        conceptInsights.getDocumentRelationScores(_, _) >> { args ->
+            numRequests++
+            throw new NotFoundException("not found")
+        }
+        def graph = new Graph("wikipedia", "en-20120601")
+        def concepts = (0..<20).collect { new Concept(graph, "Concept" + it) }
+        def failureLogFile = File.createTempFile("failures", ".csv")
+        def relater = new CiDocumentConceptRelater(conceptInsights, corpus, false)
+        relater.setBatchSizer(CiBatchSizer.fixed(10))
+        relater.setCheckReadiness(false)
+        relater.setFailureLog(failureLogFile)
+
+        when: "We get the relations"
+        def relations = relater.getDocumentConceptRelationMatrix(concepts, CiDocumentConceptRelater.NO_LIMIT, [])
+
+        then: "Each batch is requested once, and all concepts of the document are logged as failed"
+        numRequests == 2
+        relations.size() == 0
+        CiRelationFailureLog.read(failureLogFile)["doc0"].size() == 20
+
+        cleanup:
+        failureLogFile.delete()
+    }
+
+    def "Retry a batch that failed for another reason than a concept, and don't split it"()
+    {
+        given: "A service that fails once with a network error, and then on every request with Concept12"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents:
+                [ CiUtil.documentNameToId("myAccount", "myCorpus", "doc0") ])
+        def numRequests = 0
+        conceptInsights.getDocumentRelationScores(_, _) >> { args ->
+            numRequests++
+            if (numRequests == 1)
+                throw new RuntimeException(new IOException("connection reset"))
+            if (args[1].any { it.getName() == "Concept12" })
+                throw new RuntimeException("boom")
+            new Scores(scores: args[1].collect { new Score(concept: it.getId(), score: 0.5) })
+        }
+        def graph = new Graph("wikipedia", "en-20120601")
+        def concepts = (0..<20).collect { new Concept(graph, "Concept" + it) }
+        def batchSizer = Spy(CiBatchSizer, constructorArgs: [ 10, 1, 10 ])
+        def relater = new CiDocumentConceptRelater(conceptInsights, corpus, false)
+        relater.setBatchSizer(batchSizer)
+        relater.setRetryPolicy(new CiRetryPolicy(2, 0, 0))
+
+        when: "We get the relations"
+        def relations = relater.getDocumentConceptRelationMatrix(concepts, CiDocumentConceptRelater.NO_LIMIT, [])
+
+        then: "The first batch succeeds on its retry, and the batch with Concept12 fails as a whole, once"
+        numRequests == 3
+        relations.size() == 10
+        Double.isNaN(relations.get("doc0", "Concept12"))
+        1 * batchSizer.onFailure(10)
+    }
+
+    def "Only score new and modified documents and new concepts in incremental mode"()
+    {
+        given: "A corpus with three documents, and a relation store"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        def documentNames = [ "doc0", "doc1", "doc2" ]
+        def lastModified = [ doc0: 1000L, doc1: 1000L, doc2: 1000L ]
+        conceptInsights.listDocuments(corpus, _) >> { args ->
+            new Documents(documents: documentNames.collect { CiUtil.documentNameToId("myAccount", "myCorpus", it) })
+        }
+        conceptInsights.getDocumentProcessingState(_) >> { args ->
+            new DocumentProcessingStatus(status: "ready", lastModified: new Date(lastModified[args[0].getName()]))
+        }
+        def requests = [].asSynchronized()
+        conceptInsights.getDocumentRelationScores(_, _) >> { args ->
+            args[1].each { requests << args[0].getName() + ":" + it.getName() }
+            new Scores(scores: args[1].collect { new Score(concept: it.getId(), score: 0.5) })
+        }
+        def graph = new Graph("wikipedia", "en-20120601")
+        def storeFile = File.createTempFile("relations", ".bin")
+        storeFile.delete()
+        def relater = new CiDocumentConceptRelater(conceptInsights, corpus, false)
+
+        when: "We do a full sweep, then doc1 is modified, doc2 is deleted and a concept is added"
+        relater.updateDocumentConceptRelations([ new Concept(graph, "Wine") ], new CiRelationStore(storeFile))
+        documentNames.remove("doc2")
+        lastModified.doc1 = 2000L
+        requests.clear()
+        def relations = relater.updateDocumentConceptRelations([ new Concept(graph, "Wine"), new Concept(graph, "Beer") ],
+                new CiRelationStore(storeFile))
+
+        then: "Only the changes are scored, and doc2 is evicted, without downloading any documents"
+        0 * conceptInsights.getDocument(_)
+        requests as Set == [ "doc0:Beer", "doc1:Wine", "doc1:Beer" ] as Set
+        relations.getRowKeys() as Set == [ "doc0", "doc1" ] as Set
+        relations.size() == 4
+        new CiRelationStore(storeFile).getRelations().size() == 4
+
+        cleanup:
+        storeFile.delete()
+    }
+
+    def "Score a document again in the next incremental update if its requests failed"()
+    {
+        given: "A corpus with two documents, of which doc1 fails in the first update"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents:
+                [ "doc0", "doc1" ].collect { CiUtil.documentNameToId("myAccount", "myCorpus", it) })
+        conceptInsights.getDocumentProcessingState(_) >> new DocumentProcessingStatus(status: "ready",
+                lastModified: new Date(1000L))
+        def failing = true
+        def requests = [].asSynchronized()
+        conceptInsights.getDocumentRelationScores(_, _) >> { args ->
+            args[1].each { requests << args[0].getName() + ":" + it.getName() }
+            if (failing && args[0].getName() == "doc1")
+                throw new RuntimeException("boom")
+            new Scores(scores: args[1].collect { new Score(concept: it.getId(), score: 0.5) })
+        }
+        def graph = new Graph("wikipedia", "en-20120601")
+        def concepts = [ new Concept(graph, "Wine"), new Concept(graph, "Beer") ]
+        def storeFile = File.createTempFile("relations", ".bin")
+        storeFile.delete()
+        def relater = new CiDocumentConceptRelater(conceptInsights, corpus, false)
+
+        when: "We update twice, and doc1 no longer fails the second time"
+        relater.updateDocumentConceptRelations(concepts, new CiRelationStore(storeFile))
+        def firstStore = new CiRelationStore(storeFile)
+        failing = false
+        requests.clear()
+        def relations = relater.updateDocumentConceptRelations(concepts, new CiRelationStore(storeFile))
+
+        then: "doc1 is not stored as up to date after the first update, and is scored in the second"
+        firstStore.getLastModified("doc1") == CiRelationStore.UNKNOWN_LAST_MODIFIED
+        firstStore.getLastModified("doc0") == 1000L
+        requests as Set == [ "doc1:Wine", "doc1:Beer" ] as Set
+        relations.get("doc1", "Beer") == 0.5d
+        relations.size() == 4
+
+        cleanup:
+        storeFile.delete()
+    }
+
+    def "Skip documents that failed to process, and wait for documents that are still processing"()
+    {
+        given: "A corpus where doc1 is processing for a while, and doc2 failed to process"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents:
+                (0..<3).collect { CiUtil.documentNameToId("myAccount", "myCorpus", "doc" + it) })
+        def doc1Checks = 0
+        conceptInsights.getDocumentProcessingState(_) >> { args ->
+            def name = args[0].getName()
+            if (name == "doc1")
+                return new DocumentProcessingStatus(status: ++doc1Checks < 3 ? "processing" : "ready")
+            new DocumentProcessingStatus(status: name == "doc2" ? "error" : "ready")
+        }
+        def requestedDocuments = [].asSynchronized()
+        conceptInsights.getDocumentRelationScores(_, _) >> { args ->
+            requestedDocuments << args[0].getName()
+            new Scores(scores: args[1].collect { new Score(concept: it.getId(), score: 0.5) })
+        }
+        def graph = new Graph("wikipedia", "en-20120601")
+        def concepts = (0..<5).collect { new Concept(graph, "Concept" + it) }
+        def failureLogFile = File.createTempFile("failures", ".csv")
+        def relater = new CiDocumentConceptRelater(conceptInsights, corpus, false)
+        relater.setFailureLog(failureLogFile)
+        relater.setReadinessPolling(10, 5000)
+
+        when:
+        def relations = relater.getDocumentConceptRelationMatrix(concepts, CiDocumentConceptRelater.NO_LIMIT, [])
+
+        then: "doc1 is related once it is ready, and doc2 is never requested but logged as failed"
+        relations.getRowKeys().sort() == ["doc0", "doc1"]
+        ! requestedDocuments.contains("doc2")
+        doc1Checks == 3
+        CiRelationFailureLog.read(failureLogFile).keySet() == ["doc2"] as Set
+
+        cleanup:
+        failureLogFile.delete()
+    }
+}
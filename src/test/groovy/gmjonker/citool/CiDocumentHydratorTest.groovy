@@ -0,0 +1,64 @@
+package gmjonker.citool
+
+import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpus
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Document
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicInteger
+
+class CiDocumentHydratorTest extends Specification
+{
+    def "Fetch documents concurrently, and serve repeated lookups from the cache"()
+    {
+        given: "A service that fails on one document"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def numFetches = new AtomicInteger()
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.getDocument(_) >> { args ->
+            numFetches.incrementAndGet()
+            if (args[0].getName() == "doc3")
+                throw new RuntimeException("boom")
+            new Document(corpus, args[0].getName())
+        }
+        def hydrator = new CiDocumentHydrator(conceptInsights, corpus)
+                .setConcurrency(4)
+                .setRetryPolicy(CiRetryPolicy.NO_RETRIES)
+                .enableCache(100, 60000)
+        def ids = (0..<20).collect { CiUtil.documentNameToId("myAccount", "myCorpus", "doc" + it) }
+
+        when: "We fetch all documents twice"
+        def first = hydrator.hydrateAll(ids)
+        def second = hydrator.hydrateAll(ids)
+
+        then: "All documents but the failing one are returned, and only the failing one is fetched again"
+        first.keySet() == (ids - [ CiUtil.documentNameToId("myAccount", "myCorpus", "doc3") ]) as Set
+        second.keySet() == first.keySet()
+        numFetches.get() == 21
+    }
+
+    def "Start no threads until a hydration is iterated"()
+    {
+        given: "A hydrator"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.getDocument(_) >> { args -> new Document(corpus, args[0].getName()) }
+        def hydrator = new CiDocumentHydrator(conceptInsights, corpus)
+        def ids = (0..<3).collect { CiUtil.documentNameToId("myAccount", "myCorpus", "doc" + it) }
+        def hydratorThreads = { Thread.getAllStackTraces().keySet().count { it.getName().startsWith("ci-hydrator") } }
+        def threadsBefore = hydratorThreads()
+
+        when: "We start a hydration that is never iterated"
+        def hydration = hydrator.hydrate(ids)
+
+        then: "No documents are fetched and no threads are started"
+        0 * conceptInsights.getDocument(_)
+        hydratorThreads() == threadsBefore
+
+        when: "We iterate over it"
+        def documents = hydration.collect()
+
+        then: "All documents are fetched"
+        documents*.getName() as Set == [ "doc0", "doc1", "doc2" ] as Set
+    }
+}
@@ -0,0 +1,39 @@
+package gmjonker.citool
+
+import spock.lang.Specification
+
+class CiDocumentNameIndexTest extends Specification
+{
+    def "Find documents by partial name"()
+    {
+        given: "An index with some names"
+        def index = new CiDocumentNameIndex()
+        index.addAll([ "Café_de_Paris", "Cafeteria", "Paris", "ab" ])
+
+        expect: "Matches ignore case and accents, and short queries work too"
+        index.find(query) as Set == expected as Set
+
+        where:
+        query     | expected
+        "cafe"    | [ "Café_de_Paris", "Cafeteria" ]
+        "PARIS"   | [ "Café_de_Paris", "Paris" ]
+        "é_d"     | [ "Café_de_Paris" ]
+        "a"       | [ "Café_de_Paris", "Cafeteria", "Paris", "ab" ]
+        "ab"      | [ "ab" ]
+        "xyz"     | []
+    }
+
+    def "Removed names are no longer found"()
+    {
+        given:
+        def index = new CiDocumentNameIndex()
+        index.addAll([ "Amsterdam", "Rotterdam" ])
+
+        when:
+        index.remove("Amsterdam")
+
+        then:
+        index.find("dam") == [ "Rotterdam" ]
+        index.size() == 1
+    }
+}
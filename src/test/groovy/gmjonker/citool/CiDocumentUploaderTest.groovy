@@ -2,6 +2,7 @@ package gmjonker.citool
 
 import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpus
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Document
 import com.ibm.watson.developer_cloud.concept_insights.v2.model.Documents
 import spock.lang.Specification
 
@@ -44,4 +45,238 @@ class CiDocumentUploaderTest extends Specification
         then: "No errors are thrown"
         noExceptionThrown()
     }
+
+    def "Upload documents concurrently"()
+    {
+        given: "We have a Concept Insights service that fails on one document"
+        def corpus = Mock(Corpus)
+        corpus.getId() >> "/corpora/myAccount/myCorpus"
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents: [])
+        conceptInsights.createDocument(_) >> { args -> if (args[0].getName() == "doc3") throw new RuntimeException("boom") }
+        def documentUploader = CiDocumentUploader.getReplacingDocumentUploader(conceptInsights, corpus, false, true)
+                .setConcurrency(4)
+
+        when: "We upload documents"
+        def documents = documentUploader.uploadDocuments(
+                (0..<20).collect { new CiDocument(name: "doc" + it, label: "label", body: "body") } )
+
+        then: "All documents are accounted for, and returned in the order given"
+        documentUploader.lastUploadResult.succeeded.size() == 19
+        documentUploader.lastUploadResult.failed == [ "doc3" ]
+        documentUploader.getNumUpdatedDocs() == 19
+        documents*.name == (0..<20).collect { "doc" + it }
+        documents*.label.every { it == "label" }
+        documents.every { it.parts == null || it.parts.isEmpty() }
+        documentUploader.numUpdatedDocs == 19
+    }
+
+    def "Resume an interrupted upload from the journal"()
+    {
+        given: "A journal of a previous run that added one document"
+        def file = File.createTempFile("journal", ".tsv")
+        file.text = "added\tdoc0\n"
+        def corpus = Mock(Corpus)
+        corpus.getId() >> "/corpora/myAccount/myCorpus"
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents: [])
+        def documentUploader = CiDocumentUploader.getReplacingDocumentUploader(conceptInsights, corpus, false, true)
+                .setJournal(new CiUploadJournal(file))
+                .setRetryPolicy(new CiRetryPolicy(3, 0, 0))
+
+        when: "We upload documents, and Watson times out once"
+        documentUploader.uploadDocuments( (0..<3).collect { new CiDocument(name: "doc" + it, label: "label", body: "body") } )
+
+        then: "Only documents not in the journal are uploaded, the timed out one is retried"
+        0 * conceptInsights.createDocument({ it.name == "doc0" })
+        2 * conceptInsights.createDocument({ it.name == "doc1" }) >>
+                { throw new RuntimeException(new SocketTimeoutException()) } >> { }
+        1 * conceptInsights.createDocument({ it.name == "doc2" })
+        documentUploader.lastUploadResult.succeeded.sort() == [ "doc1", "doc2" ]
+        documentUploader.lastUploadResult.retried == [ "doc1" ]
+
+        and: "The journal is deleted after a successful run"
+        ! file.exists()
+    }
+
+    def "Upload a stream of documents, deleting documents that were not in the stream"()
+    {
+        given: "We have a Concept Insights service with one document"
+        def corpus = Mock(Corpus)
+        corpus.getId() >> "/corpora/myAccount/myCorpus"
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents: [ "/corpora/myAccount/myCorpus/documents/old" ])
+        def documentUploader = CiDocumentUploader.getReplacingDocumentUploader(conceptInsights, corpus, false, false)
+
+        when: "We upload a stream of documents"
+        def uploadResult = documentUploader.uploadDocuments(
+                (0..<5).stream().map { new CiDocument(name: "doc" + it, label: "label", body: "body") })
+
+        then: "All documents are added, and the old document is deleted"
+        5 * conceptInsights.createDocument(_)
+        1 * conceptInsights.deleteDocument({ it.name == "old" })
+        uploadResult.succeeded.size() == 5
+        uploadResult.deleted == [ "old" ]
+    }
+
+    def "Delete documents that are not in the list alongside the uploads"()
+    {
+        given: "We have a Concept Insights service with two documents that are not in the list"
+        def corpus = Mock(Corpus)
+        corpus.getId() >> "/corpora/myAccount/myCorpus"
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents: [
+                "/corpora/myAccount/myCorpus/documents/old0", "/corpora/myAccount/myCorpus/documents/old1" ])
+        def calls = Collections.synchronizedList([])
+        conceptInsights.createDocument(_) >> { args -> calls << "create " + args[0].getName() }
+        conceptInsights.deleteDocument(_) >> { args -> calls << "delete" }
+        def documentUploader = CiDocumentUploader.getReplacingDocumentUploader(conceptInsights, corpus, false, false)
+                .setConcurrency(1)
+
+        when: "We upload a list of documents"
+        def names = documentUploader.uploadDocuments((0..<3).collect {
+            new CiDocument(name: "doc" + it, label: "label", body: "body") }).collect { it.getName() }
+
+        then: "The deletes are interleaved with the adds, instead of waiting for them"
+        calls == [ "delete", "create doc0", "delete", "create doc1", "create doc2" ]
+        names == [ "doc0", "doc1", "doc2" ]
+        documentUploader.lastUploadResult.deleted.toSet() == [ "old0", "old1" ] as Set
+    }
+
+    def "Write through to a mirror that was registered after the uploader was built"()
+    {
+        given: "An uploader, and a mirror of the corpus that is registered afterwards"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents: [])
+        def documentUploader = CiDocumentUploader.getReplacingDocumentUploader(conceptInsights, corpus, false, true)
+        def mirror = new CiCorpusMirror(conceptInsights, corpus, 60000)
+        CiCorpusMirror.register(mirror)
+
+        when: "We upload a document"
+        documentUploader.uploadDocuments([ new CiDocument(name: "doc1", label: "label", body: "body") ])
+
+        then: "The mirror knows the document"
+        mirror.getEntry("doc1").label == "label"
+
+        cleanup:
+        CiCorpusMirror.unregister(corpus)
+    }
+
+    def "Upload documents with bodies backed by files"()
+    {
+        given: "We have a Concept Insights service, and two files of which one is empty"
+        def corpus = Mock(Corpus)
+        corpus.getId() >> "/corpora/myAccount/myCorpus"
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents: [])
+        def documentUploader = CiDocumentUploader.getReplacingDocumentUploader(conceptInsights, corpus, false, true)
+        def file = File.createTempFile("body", ".txt")
+        file.text = "some text"
+        def emptyFile = File.createTempFile("empty", ".txt")
+
+        when: "We upload the documents"
+        documentUploader.uploadDocuments( [
+                CiDocument.withLazyBody("full", "label", CiDocumentBody.ofFile(file.toPath()), null),
+                CiDocument.withLazyBody("empty", "label", CiDocumentBody.ofFile(emptyFile.toPath()), null) ] )
+
+        then: "The file is read into the request, and the empty document is skipped"
+        1 * conceptInsights.createDocument({ it.name == "full" && it.parts[0].data == "some text" })
+        0 * conceptInsights.createDocument({ it.name == "empty" })
+        documentUploader.lastUploadResult.skipped == [ "empty" ]
+
+        cleanup:
+        file.delete()
+        emptyFile.delete()
+    }
+
+    def "Record a document whose file can't be checked as failed"()
+    {
+        given: "We have a Concept Insights service, and a document whose file has gone missing"
+        def corpus = Mock(Corpus)
+        corpus.getId() >> "/corpora/myAccount/myCorpus"
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents: [])
+        def documentUploader = CiDocumentUploader.getReplacingDocumentUploader(conceptInsights, corpus, false, true)
+        def file = File.createTempFile("body", ".txt")
+        file.text = "some text"
+        def missingFile = File.createTempFile("missing", ".txt")
+        missingFile.delete()
+
+        when: "We upload the documents"
+        documentUploader.uploadDocuments( [
+                CiDocument.withLazyBody("missing", "label", CiDocumentBody.ofFile(missingFile.toPath()), null),
+                CiDocument.withLazyBody("full", "label", CiDocumentBody.ofFile(file.toPath()), null) ].iterator() )
+
+        then: "The missing document fails, and the upload carries on with the next one"
+        1 * conceptInsights.createDocument({ it.name == "full" })
+        0 * conceptInsights.createDocument({ it.name == "missing" })
+        documentUploader.lastUploadResult.failed == [ "missing" ]
+        documentUploader.lastUploadResult.succeeded == [ "full" ]
+
+        cleanup:
+        file.delete()
+    }
+
+    def "Read a supplied body only once"()
+    {
+        given: "Two documents whose bodies are produced on demand, of which one is empty"
+        def corpus = Mock(Corpus)
+        corpus.getId() >> "/corpora/myAccount/myCorpus"
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents: [])
+        def documentUploader = CiDocumentUploader.getReplacingDocumentUploader(conceptInsights, corpus, false, true)
+        def reads = [full: 0, empty: 0]
+
+        when: "We upload the documents"
+        documentUploader.uploadDocuments( [
+                CiDocument.withLazyBody("full", "label", CiDocumentBody.ofSupplier { reads.full++; "some text" }, null),
+                CiDocument.withLazyBody("empty", "label", CiDocumentBody.ofSupplier { reads.empty++; "" }, null) ]
+                .iterator() )
+
+        then: "Each body is produced once, and the empty document is skipped"
+        1 * conceptInsights.createDocument({ it.name == "full" && it.parts[0].data == "some text" })
+        0 * conceptInsights.createDocument({ it.name == "empty" })
+        reads == [full: 1, empty: 1]
+        documentUploader.lastUploadResult.skipped == [ "empty" ]
+    }
+
+    def "Only update documents whose metadata changed"()
+    {
+        given: "A corpus with two documents, of which one has an outdated label"
+        def corpus = Mock(Corpus)
+        corpus.getId() >> "/corpora/myAccount/myCorpus"
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents: [
+                "/corpora/myAccount/myCorpus/documents/doc1", "/corpora/myAccount/myCorpus/documents/doc2" ])
+        conceptInsights.getDocument(_) >> { args ->
+            new Document(name: args[0].getName(), label: args[0].getName() == "doc1" ? "label" : "old label",
+                    userFields: [a: "1"])
+        }
+        def documentUploader = CiDocumentUploader.getReplacingDocumentUploader(conceptInsights, corpus, false, true)
+                .setConcurrency(2)
+
+        when: "We update the metadata of both documents, in only-changed mode"
+        documentUploader.updateMetaData([
+                new CiDocument(name: "doc1", label: "label", body: "body", userFields: [a: "1"]),
+                new CiDocument(name: "doc2", label: "label", body: "body", userFields: [a: "1"]) ], true)
+
+        then: "Only the changed document is sent"
+        1 * conceptInsights.updateDocument({ it.getName() == "doc2" })
+        0 * conceptInsights.updateDocument({ it.getName() == "doc1" })
+        documentUploader.lastUploadResult.skipped == [ "doc1" ]
+        documentUploader.lastUploadResult.succeeded == [ "doc2" ]
+    }
+
+    def "Reject a monitoring interval that is not positive"()
+    {
+        given:
+        def documentUploader = CiDocumentUploader.getReplacingDocumentUploader(Mock(ConceptInsights), Mock(Corpus), false, true)
+
+        when:
+        documentUploader.setMonitoringInterval(0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
 }
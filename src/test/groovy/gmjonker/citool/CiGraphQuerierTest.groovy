@@ -0,0 +1,71 @@
+package gmjonker.citool
+
+import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.ConceptMetadata
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Graph
+import com.ibm.watson.developer_cloud.service.NotFoundException
+import spock.lang.Specification
+
+class CiGraphQuerierTest extends Specification
+{
+    def "Check concept names concurrently, once per name, and cache the definite answers"()
+    {
+        given: "A graph without Food_hall, and a concept whose lookup fails"
+        def conceptInsights = Mock(ConceptInsights)
+        def requestedNames = [].asSynchronized()
+        conceptInsights.getConcept(_) >> { args ->
+            def name = CiUtil.getNameFromId(args[0].getId())
+            requestedNames << name
+            if (name == "Food_hall")
+                throw new NotFoundException("not found")
+            if (name == "Flaky")
+                throw new RuntimeException("boom")
+            new ConceptMetadata()
+        }
+        def graph = new Graph("wikipedia", "en-20120601")
+        def querier = new CiGraphQuerier(conceptInsights)
+
+        when:
+        def check = querier.checkConceptNamesExist(graph, ["Chess", "Food_hall", "Chess", "Flaky"])
+
+        then:
+        check.found == ["Chess"] as Set
+        check.notFound == ["Food_hall"] as Set
+        check.errored == ["Flaky"] as Set
+        requestedNames.sort() == ["Chess", "Flaky", "Food_hall"]
+
+        when: "We check again"
+        requestedNames.clear()
+        querier.checkConceptNamesExist(graph, ["Chess", "Food_hall", "Flaky"])
+
+        then: "Only the concept that failed is requested again"
+        requestedNames == ["Flaky"]
+    }
+
+    def "Save the existence cache after checking concepts, without an explicit save"()
+    {
+        given: "A querier with a persistent existence cache"
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.getConcept(_) >> { args ->
+            if (CiUtil.getNameFromId(args[0].getId()) == "Food_hall")
+                throw new NotFoundException("not found")
+            new ConceptMetadata()
+        }
+        def graph = new Graph("wikipedia", "en-20120601")
+        def snapshotFile = File.createTempFile("existence", ".bin")
+        snapshotFile.delete()
+        def querier = new CiGraphQuerier(conceptInsights)
+        querier.setExistenceCache(new CiConceptExistenceCache().setSnapshotFile(snapshotFile))
+
+        when: "We check concepts, and load the snapshot in a new cache"
+        querier.checkConceptNamesExist(graph, ["Chess", "Food_hall"])
+        def restored = new CiConceptExistenceCache().setSnapshotFile(snapshotFile)
+
+        then: "The answers survive"
+        restored.get(graph, "Chess") == true
+        restored.get(graph, "Food_hall") == false
+
+        cleanup:
+        snapshotFile.delete()
+    }
+}
@@ -0,0 +1,45 @@
+package gmjonker.citool
+
+import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.BuildStatus
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.Corpus
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.CorpusProcessingState
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicInteger
+
+class CiProcessingStateSamplerTest extends Specification
+{
+    def "Report the processing state while uploading, and stop when closed"()
+    {
+        given: "A corpus whose processing state can be polled"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        def numPolls = new AtomicInteger()
+        conceptInsights.getCorpusProcessingState(corpus) >> {
+            numPolls.incrementAndGet()
+            new CorpusProcessingState(buildStatus: new BuildStatus(ready: 3, processing: 1, error: 0))
+        }
+        def numDone = new AtomicInteger(4)
+
+        when: "We sample until the state is reported, and then close the sampler"
+        def sampler = new CiProcessingStateSampler(conceptInsights, corpus, numDone.&get, 8, 10)
+        def deadline = System.currentTimeMillis() + 5000
+        while (sampler.getLatestSample() == null && System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        sampler.close()
+        Thread.sleep(50)
+        def numPollsAfterClose = numPolls.get()
+        Thread.sleep(100)
+
+        then: "The sample has the state and the progress, and no polls happen after closing"
+        def sample = sampler.getLatestSample()
+        sample.ready == 3
+        sample.processing == 1
+        sample.error == 0
+        sample.numDone == 4
+        sample.remainingNanos >= 0
+        numPolls.get() == numPollsAfterClose
+    }
+
+}
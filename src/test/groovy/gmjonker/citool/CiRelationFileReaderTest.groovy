@@ -0,0 +1,92 @@
+package gmjonker.citool
+
+import gmjonker.citool.domain.RelationMatrix
+import spock.lang.Specification
+
+class CiRelationFileReaderTest extends Specification
+{
+    def "Read back relations written by the binary sink"()
+    {
+        given: "A matrix with 3 documents and 2 concepts, written to a file"
+        def matrix = new RelationMatrix(["a", "b"])
+        matrix.put("doc0", "a", 0.25d)
+        matrix.put("doc1", "b", 0.5d)
+        matrix.put("doc2", "a", 0.75d)
+        matrix.put("doc2", "b", 1d)
+        def file = File.createTempFile("relations", ".bin")
+        CiBinaryRelationSink.write(file, matrix)
+
+        when:
+        def reader = new CiRelationFileReader(file)
+
+        then: "Names and scores are the same"
+        reader.getRowKeys() == ["doc0", "doc1", "doc2"]
+        reader.getColumnKeys() == ["a", "b"]
+        reader.get("doc0", "a") == 0.25d
+        reader.get("doc0", "b") == null
+        reader.get("doc2", "b") == 1d
+        reader.get("doc3", "a") == null
+        reader.getRow(2) == [0.75f, 1f] as float[]
+        Float.isNaN(reader.get(1, 0))
+
+        cleanup:
+        reader?.close()
+        file.delete()
+    }
+
+    def "Refuse a file whose sink was not closed"()
+    {
+        given:
+        def file = File.createTempFile("relations", ".bin")
+        def sink = new CiBinaryRelationSink(file, ["a"])
+        sink.accept("doc0", [a: 0.5d])
+        sink.out.flush()
+
+        when:
+        new CiRelationFileReader(file)
+
+        then:
+        thrown(IOException)
+
+        cleanup:
+        sink.close()
+        file.delete()
+    }
+
+    def "Load each checkpointed document into the binary sink once, and refuse duplicate rows"()
+    {
+        given: "A checkpoint in which doc0 has two records, as after a replay of failed requests"
+        def checkpointFile = File.createTempFile("checkpoint", ".csv")
+        def checkpoint = new CiRelationCheckpoint(checkpointFile)
+        checkpoint.record("doc0", [a: 0.25d])
+        checkpoint.record("doc1", [a: 0.5d, b: 0.5d])
+        checkpoint.record("doc0", [b: 0.75d])
+        checkpoint.close()
+        def file = File.createTempFile("relations", ".bin")
+        def sink = new CiBinaryRelationSink(file, ["a", "b"])
+
+        when: "We load the checkpoint into the sink"
+        def loadedNames = new CiRelationCheckpoint(checkpointFile).withCloseable { it.load(["doc0", "doc1"], sink) }
+        sink.close()
+        def reader = new CiRelationFileReader(file)
+
+        then: "doc0 has one row with the scores of both records"
+        loadedNames == ["doc0", "doc1"] as Set
+        reader.getRowKeys() == ["doc0", "doc1"]
+        reader.getRow(0) == [0.25f, 0.75f] as float[]
+
+        when: "A document is written twice"
+        def otherSink = new CiBinaryRelationSink(File.createTempFile("relations", ".bin"), ["a"])
+        otherSink.accept("doc0", [a: 0.5d])
+        otherSink.accept("doc0", [a: 0.5d])
+
+        then:
+        thrown(IllegalArgumentException)
+
+        cleanup:
+        reader?.close()
+        otherSink?.close()
+        checkpointFile.delete()
+        file.delete()
+    }
+}
@@ -0,0 +1,47 @@
+package gmjonker.citool
+
+import gmjonker.citool.domain.RelationMatrix
+import spock.lang.Specification
+
+class CiRelationQueryEngineTest extends Specification
+{
+    def "Get the best documents for weighted concepts"()
+    {
+        given:
+        def matrix = new RelationMatrix(["a", "b"])
+        matrix.put("doc0", "a", 0.9d)
+        matrix.put("doc1", "a", 0.5d)
+        matrix.put("doc1", "b", 1d)
+        matrix.put("doc2", "b", 0.2d)
+        matrix.addRow("doc3")
+        def engine = new CiRelationQueryEngine(matrix)
+
+        expect: "Missing scores count as zero, and documents without any score are left out"
+        engine.getTopDocuments("a", 5).keySet() as List == ["doc0", "doc1"]
+        engine.getTopDocuments(["a", "b"], 2) == [doc1: 0.75d, doc0: 0.45d]
+        engine.getTopDocuments([a: 3d, b: 1d], 1).keySet() as List == ["doc0"]
+        engine.getTopDocuments(["unknown"], 5).isEmpty()
+    }
+
+    def "Parallel scan gives the same result as sorting all documents"()
+    {
+        given: "A matrix with 50000 documents and random scores"
+        def random = new Random(42)
+        def matrix = new RelationMatrix(["a", "b", "c"])
+        50000.times { row ->
+            ["a", "b", "c"].each { if (random.nextInt(4) > 0) matrix.put("doc" + row, it, random.nextInt(1000) / 1000d) }
+        }
+        def weights = [a: 1d, c: 2d]
+
+        when:
+        def top = new CiRelationQueryEngine(matrix).getTopDocuments(weights, 100)
+
+        then: "The scores are the 100 highest"
+        def expected = matrix.getRowKeys()
+                .findAll { ! matrix.get(it, "a").naN || ! matrix.get(it, "c").naN }
+                .collect { doc -> weights.sum { c, w -> matrix.get(doc, c).naN ? 0 : w * matrix.get(doc, c) } / 3 }
+                .sort { -it }
+                .take(100)
+        top.values().collect { it.round(6) } == expected.collect { it.round(6) }
+    }
+}
@@ -0,0 +1,65 @@
+package gmjonker.citool
+
+import com.ibm.watson.developer_cloud.concept_insights.v2.ConceptInsights
+import com.ibm.watson.developer_cloud.concept_insights.v2.model.*
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+
+class CiRelationSinkTest extends Specification
+{
+    def "Stream the relations of a sweep to a CSV sink"()
+    {
+        given: "A corpus with 3 documents, and 2 concepts"
+        def corpus = new Corpus("myAccount", "myCorpus")
+        def conceptInsights = Mock(ConceptInsights)
+        conceptInsights.listDocuments(corpus, _) >> new Documents(documents:
+                (0..<3).collect { CiUtil.documentNameToId("myAccount", "myCorpus", "doc" + it) })
+        conceptInsights.getDocumentRelationScores(_, _) >> { args ->
+            new Scores(scores: args[1].collect { new Score(concept: it.getId(), score: 0.5) })
+        }
+        def graph = new Graph("wikipedia", "en-20120601")
+        def concepts = [new Concept(graph, "Concept0"), new Concept(graph, "Concept1")]
+        def relater = new CiDocumentConceptRelater(conceptInsights, corpus, false)
+        def writer = new StringWriter()
+        def sink = new CiCsvRelationSink(writer, ["Concept0", "Concept1"])
+
+        when: "We sweep into the sink"
+        relater.getDocumentConceptRelations(concepts, CiDocumentConceptRelater.NO_LIMIT, [], sink)
+        sink.close()
+
+        then: "There is a header and a row per document"
+        def lines = writer.toString().readLines()
+        lines[0] == "document,Concept0,Concept1"
+        lines.drop(1).sort() == ["doc0,0.5,0.5", "doc1,0.5,0.5", "doc2,0.5,0.5"]
+    }
+
+    def "Binary sink writes fixed size rows and completes the header on close"()
+    {
+        given:
+        def file = File.createTempFile("relations", ".bin")
+        def sink = new CiBinaryRelationSink(file, ["a", "b"])
+
+        when:
+        sink.accept("doc0", [a: 0.25d, c: 1d])
+        sink.accept("doc1", [b: 0.75d])
+        sink.close()
+
+        then:
+        def buffer = ByteBuffer.wrap(file.bytes)
+        buffer.getInt() == CiBinaryRelationSink.MAGIC
+        buffer.getInt() == CiBinaryRelationSink.VERSION
+        buffer.getInt() == 2
+        buffer.getInt() == 2
+        def rowNamesOffset = buffer.getLong()
+        buffer.position(CiBinaryRelationSink.HEADER_SIZE + 2 * (4 + 1))
+        buffer.getFloat() == 0.25f
+        Float.isNaN(buffer.getFloat())
+        Float.isNaN(buffer.getFloat())
+        buffer.getFloat() == 0.75f
+        buffer.position() == rowNamesOffset
+
+        cleanup:
+        file.delete()
+    }
+}
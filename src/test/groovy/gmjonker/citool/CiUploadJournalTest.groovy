@@ -0,0 +1,27 @@
+package gmjonker.citool
+
+import spock.lang.Specification
+
+class CiUploadJournalTest extends Specification
+{
+    def "A deleted journal records the next run"()
+    {
+        given: "A journal of a completed run"
+        def file = File.createTempFile("journal", ".tsv")
+        def journal = new CiUploadJournal(file)
+        journal.recordAdded("doc0")
+        journal.delete()
+
+        when: "The next run adds and deletes documents"
+        journal.recordAdded("doc1")
+        journal.recordDeleted("doc2")
+        journal.close()
+
+        then: "Only the documents of the next run are in the journal"
+        file.readLines() == [ "added\tdoc1", "deleted\tdoc2" ]
+        new CiUploadJournal(file).with { ! isAdded("doc0") && isAdded("doc1") && isDeleted("doc2") }
+
+        cleanup:
+        file.delete()
+    }
+}
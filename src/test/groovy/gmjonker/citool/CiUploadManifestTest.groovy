@@ -0,0 +1,30 @@
+package gmjonker.citool
+
+import spock.lang.Specification
+
+class CiUploadManifestTest extends Specification
+{
+    def "Detects changed documents and survives a reload"()
+    {
+        given: "A manifest with one recorded document"
+        def file = File.createTempFile("manifest", ".tsv")
+        file.delete()
+        def manifest = new CiUploadManifest(file)
+        def document = new CiDocument(name: "name", label: "label", body: "body", userFields: [a: "1", b: "2"])
+        manifest.put(document)
+        manifest.save()
+
+        when: "We reload the manifest"
+        def reloaded = new CiUploadManifest(file)
+
+        then: "The same document is unchanged, and changes to body, label or user fields are detected"
+        ! reloaded.isChanged(new CiDocument(name: "name", label: "label", body: "body", userFields: [b: "2", a: "1"]))
+        reloaded.isChanged(new CiDocument(name: "name", label: "label", body: "body!", userFields: [a: "1", b: "2"]))
+        reloaded.isChanged(new CiDocument(name: "name", label: "label!", body: "body", userFields: [a: "1", b: "2"]))
+        reloaded.isChanged(new CiDocument(name: "name", label: "label", body: "body", userFields: [a: "1"]))
+        reloaded.isChanged(new CiDocument(name: "other", label: "label", body: "body", userFields: [a: "1", b: "2"]))
+
+        cleanup:
+        file.delete()
+    }
+}
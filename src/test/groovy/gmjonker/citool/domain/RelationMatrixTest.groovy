@@ -0,0 +1,69 @@
+package gmjonker.citool.domain
+
+import com.google.common.collect.HashBasedTable
+import com.google.common.collect.Tables
+import spock.lang.Specification
+
+class RelationMatrixTest extends Specification
+{
+    def "Store relations and view them as a table"()
+    {
+        given: "A matrix with one column added up front and one added later"
+        def matrix = new RelationMatrix([ "Wine" ])
+        matrix.put("doc1", "Wine", 0.5)
+        matrix.put("doc2", "Coffee", 0.25)
+        matrix.addRow("doc3")
+
+        expect: "Values and missing cells"
+        matrix.get("doc1", "Wine") == 0.5d
+        Double.isNaN(matrix.get("doc1", "Coffee"))
+        Double.isNaN(matrix.get("unknown", "Wine"))
+        matrix.size() == 2
+        matrix.getNumRows() == 3
+        matrix.getRow(0).length == 2
+        matrix.getColumn(matrix.getColumnIndex("Coffee"))[1] == 0.25f
+        Float.isNaN(matrix.getColumn(matrix.getColumnIndex("Coffee"))[2])
+
+        and: "The table view equals a table with the same cells, and leaves out empty rows"
+        def table = HashBasedTable.create()
+        table.put("doc1", "Wine", 0.5d)
+        table.put("doc2", "Coffee", 0.25d)
+        matrix.asTable() == table
+        matrix.asTable().rowKeySet() == [ "doc1", "doc2" ] as Set
+        matrix.asTable().row("doc1") == [ Wine: 0.5d ]
+        matrix.asTable().column("Coffee") == [ doc2: 0.25d ]
+
+        and: "Cells and values are looked up without collecting them"
+        table == matrix.asTable()
+        matrix.asTable().cellSet().contains(Tables.immutableCell("doc1", "Wine", 0.5d))
+        ! matrix.asTable().cellSet().contains(Tables.immutableCell("doc1", "Wine", 0.75d))
+        matrix.asTable().containsValue(0.25d)
+        ! matrix.asTable().containsValue(0.75d)
+        matrix.asTable().values().toList() == [ 0.5d, 0.25d ]
+    }
+
+    def "Count values as cells are written, also from concurrent writers"()
+    {
+        given: "A matrix that is filled by several threads, one row each"
+        def matrix = new RelationMatrix()
+        def columns = (0..<50).collect { "concept" + it }
+        def threads = (0..<8).collect { i ->
+            Thread.start { columns.each { matrix.put("doc" + i, it, i) } }
+        }
+        threads*.join()
+
+        when: "Some cells are overwritten and some are emptied"
+        matrix.put("doc0", "concept0", 1.0)
+        matrix.put("doc1", "concept0", Double.NaN)
+        columns.each { matrix.put("doc2", it, Double.NaN) }
+
+        then: "The counts follow the non-empty cells"
+        matrix.size() == 8 * 50 - 1 - 50
+        matrix.getRowSize(matrix.getRowIndex("doc1")) == 49
+        matrix.getColumnSize(matrix.getColumnIndex("concept0")) == 6
+        ! matrix.asTable().containsRow("doc2")
+        matrix.asTable().containsRow("doc1")
+        ! matrix.asTable().rowKeySet().contains("doc2")
+        matrix.asTable().columnKeySet().size() == 50
+    }
+}